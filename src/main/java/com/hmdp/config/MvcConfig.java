@@ -1,13 +1,17 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 
 @Configuration // 表示这是一个配置类
@@ -16,11 +20,15 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate; // 注入String类型的Redis模板
 
+    @Value("${hmdp.admin.user-ids:}")
+    private List<Long> adminUserIds; // 允许访问 /admin/** 运维接口的用户ID，未配置时任何用户都不能访问
+
     /**
      * 配置拦截器。
      * @param registry 此方法用于注册拦截器，配置了两个拦截器：
      *                 1、登录拦截器，拦截除特定路径外的所有请求；
-     *                 2、token刷新拦截器，拦截所有请求，用户自动刷新用户的token，保证用户的登录状态不失效
+     *                 2、token刷新拦截器，拦截所有请求，用户自动刷新用户的token，保证用户的登录状态不失效；
+     *                 3、管理员拦截器，/admin/** 只允许 hmdp.admin.user-ids 中的用户访问
      */
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -33,9 +41,15 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",     // 排除上传相关路径
                         "/blog/hot",      // 排除热门博客路径
                         "/user/code",     // 排除用户验证码路径
-                        "/user/login"     // 排除用户登录路径
+                        "/user/login",    // 排除用户登录路径
+                        "/actuator/**"    // 排除监控端点路径
                 ).order(1); // 设置拦截器执行顺序
 
+        // 添加管理员拦截器，运维接口只允许管理员访问
+        registry.addInterceptor(new AdminInterceptor(new HashSet<>(adminUserIds)))
+                .addPathPatterns("/admin/**")
+                .order(2);
+
         // 添加token刷新拦截器，拦截所有请求以实现token的自动刷新
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)) // 使用StringRedisTemplate进行token管理的拦截器
                 .addPathPatterns("/**") // 拦截所有路径
@@ -0,0 +1,24 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.HotKeyRedisTemplate;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+@Configuration
+public class RedisTemplateConfig {
+
+    /**
+     * 替换自动配置的StringRedisTemplate，所有读命令的key都上报给热点key探测。
+     *
+     * @param connectionFactory Redis连接工厂
+     * @param hotKeyDetector 热点key探测
+     * @return StringRedisTemplate
+     */
+    @Bean
+    public StringRedisTemplate stringRedisTemplate(RedisConnectionFactory connectionFactory, HotKeyDetector hotKeyDetector) {
+        return new HotKeyRedisTemplate(connectionFactory, hotKeyDetector);
+    }
+}
@@ -0,0 +1,43 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.ICacheWarmupService;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  缓存预热
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+@RestController
+@RequestMapping("/admin/cache-warmup")
+public class CacheWarmupController {
+
+    @Resource
+    private ICacheWarmupService cacheWarmupService;
+
+    /**
+     * 在后台开始一次缓存预热，例如Redis故障切换之后
+     */
+    @PostMapping
+    public Result start() {
+        return cacheWarmupService.start() ? Result.ok() : Result.fail("缓存预热正在进行");
+    }
+
+    /**
+     * 查看最近一次缓存预热的进度
+     * @return 预热进度
+     */
+    @GetMapping
+    public Result progress() {
+        return Result.ok(cacheWarmupService.progress());
+    }
+}
@@ -0,0 +1,34 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  本节点的热点key统计
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+@RestController
+@RequestMapping("/admin/hot-keys")
+public class HotKeyController {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查看估计读取次数最多的key
+     * @return 按估计读取次数降序排列的key、是否为热点key和租约剩余时间
+     */
+    @GetMapping
+    public Result listHotKeys() {
+        return Result.ok(hotKeyDetector.report());
+    }
+}
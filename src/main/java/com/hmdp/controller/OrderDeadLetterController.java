@@ -0,0 +1,51 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.OrderPendingRecovery;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  订单死信队列管理
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+@RestController
+@RequestMapping("/admin/order-dlq")
+public class OrderDeadLetterController {
+
+    @Resource
+    private OrderPendingRecovery orderPendingRecovery;
+
+    /**
+     * 查看死信队列中最近的消息
+     * @param count 最多返回的消息数
+     * @return 死信消息：消息ID -> 订单信息、原队列、投递次数和失败原因
+     */
+    @GetMapping
+    public Result listDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return Result.ok(orderPendingRecovery.listDeadLetters(count));
+    }
+
+    /**
+     * 将死信消息重新投递到原队列
+     * @param id 死信消息ID
+     */
+    @PostMapping("/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String id) {
+        return orderPendingRecovery.replayDeadLetter(id) ? Result.ok() : Result.fail("死信消息不存在");
+    }
+
+    /**
+     * 删除死信消息
+     * @param id 死信消息ID
+     */
+    @DeleteMapping("/{id}")
+    public Result deleteDeadLetter(@PathVariable("id") String id) {
+        return orderPendingRecovery.deleteDeadLetter(id) ? Result.ok() : Result.fail("死信消息不存在");
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.ISeckillReconcileService;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  秒杀券Redis与MySQL对账
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+@RestController
+@RequestMapping("/admin/seckill-reconcile")
+public class SeckillReconcileController {
+
+    @Resource
+    private ISeckillReconcileService seckillReconcileService;
+
+    /**
+     * 对账一张秒杀券
+     * @param voucherId 秒杀券ID
+     * @param repair 是否修复差异，默认只报告
+     * @return 对账结果
+     */
+    @PostMapping("/{id}")
+    public Result reconcile(@PathVariable("id") Long voucherId,
+                            @RequestParam(value = "repair", defaultValue = "false") Boolean repair) {
+        return Result.ok(seckillReconcileService.reconcile(voucherId, repair));
+    }
+}
@@ -3,12 +3,14 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -24,9 +26,51 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-
+        // 准入控制：库存不足或请求过多时直接拒绝，不再执行秒杀脚本
+        if (!seckillAdmission.tryAcquire(voucherId)) {
+            return Result.fail("库存不足或活动太火爆，请稍后再试");
+        }
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 组合秒杀：一次购买多张秒杀券，全部成功或全部失败
+     * @param voucherIds 秒杀券ID
+     * @return 各张秒杀券对应的订单ID
+     */
+    @PostMapping("seckill/bundle")
+    @SuppressWarnings("unchecked")
+    public Result seckillBundle(@RequestBody List<Long> voucherIds) {
+        // 先校验ID，数量不合法时直接拒绝，不占用准入令牌
+        Result checked = voucherOrderService.checkBundle(voucherIds);
+        if (!checked.getSuccess()) {
+            return checked;
+        }
+        List<Long> ids = (List<Long>) checked.getData();
+        for (Long voucherId : ids) {
+            if (!seckillAdmission.tryAcquire(voucherId)) {
+                return Result.fail("库存不足或活动太火爆，请稍后再试");
+            }
+        }
+        return voucherOrderService.seckillBundle(ids);
+    }
+
+    /**
+     * 查询秒杀订单的处理状态：QUEUED 排队中，PERSISTED 已创建，FAILED 创建失败
+     * @param orderId 秒杀接口返回的订单ID
+     * @param timeout 订单仍在排队时最多等待的毫秒数，0表示立即返回
+     */
+    @GetMapping("/{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "timeout", defaultValue = "0") Long timeout) {
+        return orderStatusTracker.queryStatus(orderId, UserHolder.getUser().getId(), Math.min(timeout, 30000L));
+    }
 }
@@ -0,0 +1,23 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 热点key统计结果
+ */
+@Data
+public class HotKeyReport {
+    private String key;
+    /**
+     * 当前衰减周期内的估计读取次数（count-min sketch的估计值，只会偏大）
+     */
+    private Long count;
+    /**
+     * 是否已提升为热点key，租约内读取本地副本
+     */
+    private Boolean hot;
+    /**
+     * 热点租约的剩余时间（毫秒）
+     */
+    private Long leaseMs;
+}
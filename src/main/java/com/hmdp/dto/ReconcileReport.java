@@ -0,0 +1,47 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 秒杀券Redis与MySQL对账结果
+ */
+@Data
+public class ReconcileReport {
+    private Long voucherId;
+    private Integer shards;
+    /**
+     * Redis中的剩余库存（分桶时为各桶之和）与已下单用户数
+     */
+    private Long redisStock;
+    private Long redisUsers;
+    /**
+     * 数据库中的剩余库存与有效订单数（不含已取消）
+     */
+    private Long dbStock;
+    private Long dbOrders;
+    /**
+     * (redisStock + redisUsers) - (dbStock + dbOrders)，两边都应等于初始库存
+     */
+    private Long stockDiff;
+    /**
+     * 数据库中有订单但Redis订单集合中没有的用户
+     */
+    private Long missingInRedis = 0L;
+    /**
+     * Redis订单集合中有但数据库中没有订单的用户，可能仍在队列中，连续两次对账都存在时才会修复
+     */
+    private Long orphanInRedis = 0L;
+    private List<String> sampleMissing = new ArrayList<>();
+    private List<String> sampleOrphans = new ArrayList<>();
+    /**
+     * 是否执行了修复，以及各项修复的数量
+     */
+    private Boolean repair;
+    private Long repairedMissing = 0L;
+    private Long repairedOrphans = 0L;
+    private Long stockAdjustment = 0L;
+    private String message;
+}
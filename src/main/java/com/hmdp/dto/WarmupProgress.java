@@ -0,0 +1,33 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存预热进度
+ */
+@Data
+public class WarmupProgress {
+    /**
+     * IDLE 未运行；RUNNING 运行中；DONE 完成；FAILED 失败
+     */
+    private String state;
+    /**
+     * 当前阶段：shop-type 商铺类型；seckill 秒杀券库存；hot-shop 热点店铺；shop 全部店铺和地理位置
+     */
+    private String stage;
+    /**
+     * 热点数据是否已加载，加载完成前启动时的就绪探针不通过
+     */
+    private Boolean hotLoaded;
+    /**
+     * 店铺总数与已写入缓存的店铺数、页数
+     */
+    private Long total;
+    private Long loaded;
+    private Long pages;
+    private LocalDateTime startTime;
+    private LocalDateTime endTime;
+    private String message;
+}
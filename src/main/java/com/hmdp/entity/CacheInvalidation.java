@@ -0,0 +1,63 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 缓存失效发件箱，记录尚未确认删除成功的缓存key
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_cache_invalidation")
+public class CacheInvalidation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 需要删除的缓存key
+     */
+    private String cacheKey;
+
+    /**
+     * 已重试的次数
+     */
+    private Integer attempts;
+
+    /**
+     * 下一次重试的时间
+     */
+    private LocalDateTime nextRetryTime;
+
+    /**
+     * 最近一次失败的原因
+     */
+    private String lastError;
+
+    /**
+     * 创建时间
+     */
+    private LocalDateTime createTime;
+
+    /**
+     * 更新时间
+     */
+    private LocalDateTime updateTime;
+}
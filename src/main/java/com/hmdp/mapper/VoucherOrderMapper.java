@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -12,4 +15,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 批量插入订单，一条多行INSERT语句写入全部订单
+     * @param orders 订单列表
+     * @return 插入的行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 查询tb_voucher_order上指定名称的唯一索引包含的列数
+     * @param indexName 索引名称
+     * @return 索引包含的列数，索引不存在时为0
+     */
+    int countUniqueIndex(@Param("indexName") String indexName);
 }
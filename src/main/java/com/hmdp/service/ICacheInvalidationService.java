@@ -0,0 +1,21 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.CacheInvalidation;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+/**
+ * <p>
+ * 缓存失效 服务类
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+public interface ICacheInvalidationService extends IService<CacheInvalidation> {
+
+    /**
+     * 删除CacheClient管理的缓存。在事务中调用时，事务提交后才删除，回滚时不删除；
+     * 删除后延迟再删除一次，删除失败时持久化后重试
+     * @param key 缓存的键
+     */
+    void invalidate(String key);
+}
@@ -0,0 +1,25 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.WarmupProgress;
+
+/**
+ * <p>
+ * 缓存预热 服务类
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+public interface ICacheWarmupService {
+
+    /**
+     * 在后台开始一次缓存预热
+     * @return 已有预热正在进行时返回false
+     */
+    boolean start();
+
+    /**
+     * 查询最近一次缓存预热的进度
+     * @return 预热进度
+     */
+    WarmupProgress progress();
+}
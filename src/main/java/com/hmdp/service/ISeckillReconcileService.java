@@ -0,0 +1,21 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.ReconcileReport;
+
+/**
+ * <p>
+ * 秒杀券Redis与MySQL对账 服务类
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+public interface ISeckillReconcileService {
+
+    /**
+     * 对账一张秒杀券
+     * @param voucherId 秒杀券ID
+     * @param repair 是否修复差异
+     * @return 对账结果
+     */
+    ReconcileReport reconcile(Long voucherId, boolean repair);
+}
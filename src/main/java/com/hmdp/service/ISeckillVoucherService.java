@@ -12,4 +12,10 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    void preheat(SeckillVoucher voucher);
+
+    /**
+     * 预热即将开始或正在进行、但Redis中还没有数据的秒杀券
+     */
+    void preheatSeckillVouchers();
 }
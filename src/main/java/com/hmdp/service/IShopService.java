@@ -18,6 +18,8 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
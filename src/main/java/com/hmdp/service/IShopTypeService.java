@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -14,4 +16,10 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryShopType();
+
+    /**
+     * 从数据库查询全部商铺类型并写入缓存
+     * @return 商铺类型列表，按sort排序
+     */
+    List<ShopType> loadShopTypeCache();
 }
@@ -13,22 +13,33 @@ import com.hmdp.entity.Follow;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
+import com.hmdp.service.ICacheInvalidationService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -49,6 +60,24 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Resource
     private IFollowService followService;
+
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ICacheInvalidationService cacheInvalidationService;
+
+    @PostConstruct
+    private void init() {
+        // 注册笔记ID的布隆过滤器，按ID分页读取全部笔记ID构建
+        idBloomFilters.register(IdBloomFilters.BLOG, (lastId, limit) -> query()
+                .select("id").gt("id", lastId).orderByAsc("id").last("LIMIT " + limit)
+                .list().stream().map(Blog::getId).collect(Collectors.toList()));
+    }
+
     /**
      * 根据ID查询博客信息。
      *
@@ -57,6 +86,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryBlogById(Long id) {
+        // 布隆过滤器判断一定不存在的笔记不查询数据库
+        if (!idBloomFilters.mightContain(IdBloomFilters.BLOG, id)) {
+            return Result.fail("笔记不存在！");
+        }
         // 根据ID查询具体的博客
         Blog blog = getById(id);
         if (blog == null) {
@@ -109,11 +142,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页的博客列表
         List<Blog> records = page.getRecords();
 
-        // 为每篇博客查询用户信息和是否被点赞
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询博客的用户信息和是否被点赞
+        queryBlogUsers(records);
+        isBlogsLiked(records);
 
         // 返回处理后的博客列表
         return Result.ok(records);
@@ -146,6 +177,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 如果更新成功，则从Redis的点赞集合中移除用户ID
             stringRedisTemplate.opsForZSet().remove(BLOG_LIKED_KEY + id, userId.toString());
         }
+        // 点赞数变化，删除笔记缓存
+        cacheInvalidationService.invalidate(CACHE_BLOG_KEY + id);
         // 返回操作成功的结果
         return Result.ok();
     }
@@ -194,6 +227,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 如果保存失败，返回失败信息
             return Result.fail("新增笔记失败");
         }
+        // 写入布隆过滤器
+        idBloomFilters.add(IdBloomFilters.BLOG, blog.getId());
         // 查询当前用户的所有粉丝
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
         // 给所有粉丝推送新博客信息
@@ -240,14 +275,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
             minTime = tuple.getScore().longValue(); // 更新最小时间戳
         }
-        // 根据博客ID查询博客详情，并按ID顺序排列
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        // 为每个博客查询相关用户信息和是否被点赞
-        for (Blog blog : blogs){
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        }
+        // 根据博客ID批量查询博客缓存（一次MGET，未命中的一次批量查询数据库），按ID顺序排列
+        List<Blog> blogs = cacheClient.queryBatchWithPassThrough(CACHE_BLOG_KEY, ids, Blog.class,
+                this::listByIds, Blog::getId, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        // 批量查询相关用户信息和是否被点赞
+        queryBlogUsers(blogs);
+        isBlogsLiked(blogs);
         // 封装查询结果并返回
         ScrollResult r = new ScrollResult();
         r.setList(blogs);
@@ -274,4 +307,47 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setIcon(user.getIcon());
     }
 
+    /**
+     * 批量查询博客用户信息，一次查询所有作者
+     *
+     * @param blogs 博客列表
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, User> users = userService.listByIds(userIds).stream()
+                .collect(Collectors.toMap(User::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            User user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    /**
+     * 批量判断当前登录用户是否点赞了博客，在一个管道中查询所有博客的点赞集合
+     *
+     * @param blogs 博客列表
+     */
+    private void isBlogsLiked(List<Blog> blogs) {
+        if (UserHolder.getUser() == null || blogs.isEmpty()) {
+            return;
+        }
+        String userId = UserHolder.getUser().getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
 }
@@ -0,0 +1,219 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.entity.CacheInvalidation;
+import com.hmdp.mapper.CacheInvalidationMapper;
+import com.hmdp.service.ICacheInvalidationService;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 缓存失效：先更新数据库，事务提交后再删除缓存，并保证最终删除成功。
+ * 1.事务中调用invalidate时，在同一个事务中写入发件箱表 tb_cache_invalidation，并把key记录在本事务的本地发件箱中；
+ *   事务回滚时两者一起丢弃，提交后立即删除缓存（同时通知各节点删除一级缓存），成功后删除发件箱记录；
+ * 2.删除后延迟 double-delete-delay-ms 再删除一次，覆盖提交前读到旧数据的请求在提交后写回的缓存；
+ * 3.删除失败、或者提交后进程退出没来得及删除时，发件箱记录保留，由定时任务按指数退避重试，直到删除成功；
+ *   不在事务中调用时立即删除，失败时写入发件箱重试。
+ * 数据库操作都在后台线程中执行，不会加入已经提交的事务。
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+@Slf4j
+@Service
+public class CacheInvalidationServiceImpl extends ServiceImpl<CacheInvalidationMapper, CacheInvalidation> implements ICacheInvalidationService {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 第一次删除后多久（毫秒）再删除一次
+     */
+    @Value("${hmdp.cache.invalidation.double-delete-delay-ms:1000}")
+    private long doubleDeleteDelayMs;
+
+    /**
+     * 事务中写入的发件箱记录多久（毫秒）之后才会被定时任务重试，正常情况下提交后已经删除
+     */
+    @Value("${hmdp.cache.invalidation.outbox-grace-ms:5000}")
+    private long outboxGraceMs;
+
+    /**
+     * 第一次重试的退避时间（毫秒），之后每次翻倍
+     */
+    @Value("${hmdp.cache.invalidation.retry-base-ms:1000}")
+    private long retryBaseMs;
+
+    /**
+     * 重试退避时间的上限（毫秒）
+     */
+    @Value("${hmdp.cache.invalidation.retry-max-ms:300000}")
+    private long retryMaxMs;
+
+    /**
+     * 每次重试的最大记录数
+     */
+    @Value("${hmdp.cache.invalidation.retry-batch-size:100}")
+    private int retryBatchSize;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    private void init() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "cache-invalidation"));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void invalidate(String key) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()
+                || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            delete(key, null);
+            return;
+        }
+        Outbox outbox = outbox();
+        if (outbox.rows.containsKey(key)) {
+            return;
+        }
+        // 在同一个事务中写入发件箱，提交后进程退出时由定时任务补删；写入失败时不影响业务事务，只在提交后删除
+        CacheInvalidation row = new CacheInvalidation()
+                .setCacheKey(key)
+                .setAttempts(0)
+                .setNextRetryTime(LocalDateTime.now().plusNanos(outboxGraceMs * 1000000));
+        try {
+            save(row);
+        } catch (RuntimeException e) {
+            log.warn("写入缓存失效发件箱失败，key={}", key, e);
+            row = null;
+        }
+        outbox.rows.put(key, row);
+    }
+
+    /**
+     * 本事务的本地发件箱，第一次调用时注册到事务同步中
+     */
+    private Outbox outbox() {
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof Outbox) {
+                return (Outbox) synchronization;
+            }
+        }
+        Outbox outbox = new Outbox();
+        TransactionSynchronizationManager.registerSynchronization(outbox);
+        return outbox;
+    }
+
+    /**
+     * 删除缓存并安排延迟二次删除
+     * @param row 事务中写入的发件箱记录，删除成功后删除记录；为null时删除失败才写入记录
+     */
+    private void delete(String key, CacheInvalidation row) {
+        try {
+            cacheClient.delete(key);
+            if (row != null) {
+                executor.execute(() -> removeQuietly(row));
+            }
+        } catch (RuntimeException e) {
+            log.warn("删除缓存失败，稍后重试，key={}", key, e);
+            if (row == null) {
+                executor.execute(() -> saveRetry(key, e));
+            }
+        }
+        executor.schedule(() -> {
+            try {
+                cacheClient.delete(key);
+            } catch (RuntimeException e) {
+                log.warn("延迟二次删除缓存失败，稍后重试，key={}", key, e);
+                saveRetry(key, e);
+            }
+        }, doubleDeleteDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void removeQuietly(CacheInvalidation row) {
+        try {
+            removeById(row.getId());
+        } catch (RuntimeException e) {
+            // 记录保留在表中，定时任务会再删除一次缓存，没有副作用
+            log.debug("删除缓存失效发件箱记录失败，id={}", row.getId(), e);
+        }
+    }
+
+    private void saveRetry(String key, RuntimeException cause) {
+        try {
+            save(new CacheInvalidation()
+                    .setCacheKey(key)
+                    .setAttempts(0)
+                    .setNextRetryTime(LocalDateTime.now().plusNanos(retryBaseMs * 1000000))
+                    .setLastError(StrUtil.maxLength(cause.getMessage(), 500)));
+        } catch (RuntimeException e) {
+            log.error("写入缓存失效重试记录失败，缓存可能与数据库不一致，key={}", key, e);
+        }
+    }
+
+    /**
+     * 定时重试到期的发件箱记录，删除缓存成功后删除记录，失败时按指数退避推迟下一次重试；
+     * Redis不可用时第一次失败后就结束本轮，避免每条记录都等待超时
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.invalidation.retry-interval-ms:5000}")
+    public void retryFailed() {
+        List<CacheInvalidation> due;
+        try {
+            due = query().le("next_retry_time", LocalDateTime.now())
+                    .orderByAsc("id").last("LIMIT " + retryBatchSize).list();
+        } catch (RuntimeException e) {
+            log.debug("查询缓存失效发件箱失败", e);
+            return;
+        }
+        for (CacheInvalidation row : due) {
+            try {
+                cacheClient.delete(row.getCacheKey());
+            } catch (RuntimeException e) {
+                int attempts = row.getAttempts() + 1;
+                long backoff = Math.min(retryMaxMs, retryBaseMs << Math.min(attempts, 20));
+                updateById(new CacheInvalidation()
+                        .setId(row.getId())
+                        .setAttempts(attempts)
+                        .setNextRetryTime(LocalDateTime.now().plusNanos(backoff * 1000000))
+                        .setLastError(StrUtil.maxLength(e.getMessage(), 500)));
+                log.warn("重试删除缓存失败，key={}，attempts={}", row.getCacheKey(), attempts, e);
+                return;
+            }
+            removeQuietly(row);
+        }
+    }
+
+    /**
+     * 一个事务中需要删除的缓存key -> 发件箱记录，事务提交后删除
+     */
+    private class Outbox extends TransactionSynchronizationAdapter {
+        private final Map<String, CacheInvalidation> rows = new LinkedHashMap<>();
+
+        @Override
+        public void afterCommit() {
+            rows.forEach(CacheInvalidationServiceImpl.this::delete);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.WarmupProgress;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.ICacheWarmupService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ * 缓存预热：应用启动时或者通过 /admin/cache-warmup 手动触发，Redis清空或故障切换后不需要再手动写入店铺缓存。
+ * 1.商铺类型列表写入 cache:shopType:；
+ * 2.预热即将开始或正在进行的秒杀券库存；
+ * 3.按销量取前 hot-size 个热点店铺写入逻辑过期缓存，启动时在这一步完成之前不返回，就绪探针不通过；
+ * 4.按ID分页读取全部店铺，每页交给有界线程池在一个管道中写入逻辑过期缓存，同时写入临时的地理位置key，
+ *   全部完成后用RENAME替换 shop:geo:{typeId}，已删除的店铺不会残留。多个节点同时启动时只有一个节点执行这一步。
+ * </p>
+ *
+ * @author jialin.zhou
+ */
+@Slf4j
+@Service
+public class CacheWarmupServiceImpl implements ICacheWarmupService, ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    /**
+     * 是否在启动时预热
+     */
+    @Value("${hmdp.warmup.on-startup:true}")
+    private boolean onStartup;
+
+    /**
+     * 每页读取的店铺数
+     */
+    @Value("${hmdp.warmup.page-size:500}")
+    private int pageSize;
+
+    /**
+     * 写入缓存的线程数
+     */
+    @Value("${hmdp.warmup.threads:4}")
+    private int threads;
+
+    /**
+     * 启动时必须加载完成的热点店铺数
+     */
+    @Value("${hmdp.warmup.hot-size:1000}")
+    private int hotSize;
+
+    /**
+     * 启动时等待热点数据加载的最长时间（毫秒），超时后不再阻塞启动
+     */
+    @Value("${hmdp.warmup.ready-timeout-ms:60000}")
+    private long readyTimeoutMs;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile String state = "IDLE";
+    private volatile String stage;
+    private volatile boolean hotLoaded;
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private volatile LocalDateTime startTime;
+    private volatile LocalDateTime endTime;
+    private volatile String message;
+
+    /**
+     * 启动时预热：ApplicationRunner执行完之前Spring Boot不会发布ACCEPTING_TRAFFIC，就绪探针不通过；
+     * 热点数据加载完成后返回，其余店铺在后台继续预热
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!onStartup || !running.compareAndSet(false, true)) {
+            return;
+        }
+        CompletableFuture<Void> hot = new CompletableFuture<>();
+        startThread(hot);
+        try {
+            hot.get(readyTimeoutMs, TimeUnit.MILLISECONDS);
+            log.info("热点数据预热完成，开始接收流量");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("热点数据预热失败，不再等待", e.getCause());
+        } catch (TimeoutException e) {
+            log.warn("热点数据预热超过{}ms，不再等待", readyTimeoutMs);
+        }
+    }
+
+    @Override
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        startThread(new CompletableFuture<>());
+        return true;
+    }
+
+    @Override
+    public WarmupProgress progress() {
+        WarmupProgress progress = new WarmupProgress();
+        progress.setState(state);
+        progress.setStage(stage);
+        progress.setHotLoaded(hotLoaded);
+        progress.setTotal(total.get());
+        progress.setLoaded(loaded.get());
+        progress.setPages(pages.get());
+        progress.setStartTime(startTime);
+        progress.setEndTime(endTime);
+        progress.setMessage(message);
+        return progress;
+    }
+
+    private void startThread(CompletableFuture<Void> hot) {
+        Thread thread = new Thread(() -> warmUp(hot), "cache-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warmUp(CompletableFuture<Void> hot) {
+        state = "RUNNING";
+        hotLoaded = false;
+        total.set(0);
+        loaded.set(0);
+        pages.set(0);
+        startTime = LocalDateTime.now();
+        endTime = null;
+        message = null;
+        try {
+            stage = "shop-type";
+            List<ShopType> types = shopTypeService.loadShopTypeCache();
+
+            stage = "seckill";
+            seckillVoucherService.preheatSeckillVouchers();
+
+            stage = "hot-shop";
+            long readSeq = cacheClient.invalidationSeq();
+            List<Shop> hotShops = shopService.query().orderByDesc("sold").last("LIMIT " + hotSize).list();
+            writeShops(hotShops, readSeq);
+            hotLoaded = true;
+            hot.complete(null);
+            log.info("预热热点店铺{}个", hotShops.size());
+
+            stage = "shop";
+            RLock lock = redissonClient.getLock(LOCK_WARMUP_KEY);
+            if (lock.tryLock()) {
+                try {
+                    warmUpShops(types);
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                message = "其他节点正在预热全部店铺，本节点只预热了热点店铺";
+            }
+            state = "DONE";
+        } catch (Exception e) {
+            log.error("缓存预热失败，stage={}", stage, e);
+            state = "FAILED";
+            message = e.getMessage();
+            hot.completeExceptionally(e);
+        } finally {
+            endTime = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    /**
+     * 按ID分页读取全部店铺，每页交给线程池写入缓存和临时地理位置key，全部完成后替换地理位置key
+     */
+    private void warmUpShops(List<ShopType> types) throws InterruptedException, ExecutionException {
+        total.set(shopService.count());
+        Set<Long> typeIds = ConcurrentHashMap.newKeySet();
+        types.forEach(type -> typeIds.add(type.getId()));
+        // 清理上一次中断的预热留下的临时key
+        stringRedisTemplate.delete(typeIds.stream().map(CacheWarmupServiceImpl::tempGeoKey).collect(Collectors.toList()));
+
+        // 队列满时由读取数据库的线程自己写入，读取速度不会超过写入速度太多
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads), r -> new Thread(r, "cache-warmup-worker"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        Set<Long> geoTypeIds = ConcurrentHashMap.newKeySet();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            long lastId = 0;
+            while (true) {
+                // 读取之前的失效序号，写入时跳过之后被修改过的店铺
+                long readSeq = cacheClient.invalidationSeq();
+                List<Shop> page = shopService.query()
+                        .gt("id", lastId).orderByAsc("id").last("LIMIT " + pageSize).list();
+                if (page.isEmpty()) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getId();
+                futures.add(executor.submit(() -> writePage(page, readSeq, geoTypeIds)));
+                if (page.size() < pageSize) {
+                    break;
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            futures.forEach(f -> f.cancel(true));
+            stringRedisTemplate.delete(geoTypeIds.stream().map(CacheWarmupServiceImpl::tempGeoKey).collect(Collectors.toList()));
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+
+        // 替换地理位置key，没有店铺的类型删除旧数据
+        typeIds.addAll(geoTypeIds);
+        for (Long typeId : typeIds) {
+            if (geoTypeIds.contains(typeId)) {
+                stringRedisTemplate.rename(tempGeoKey(typeId), SHOP_GEO_KEY + typeId);
+            } else {
+                stringRedisTemplate.delete(SHOP_GEO_KEY + typeId);
+            }
+        }
+        log.info("预热店铺{}个，共{}页", loaded.get(), pages.get());
+    }
+
+    /**
+     * 写入一页店铺的缓存和临时地理位置key
+     */
+    private void writePage(List<Shop> page, long readSeq, Set<Long> geoTypeIds) {
+        writeShops(page, readSeq);
+        Map<Long, List<RedisGeoCommands.GeoLocation<String>>> locations = new LinkedHashMap<>();
+        for (Shop shop : page) {
+            if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                locations.computeIfAbsent(shop.getTypeId(), k -> new ArrayList<>())
+                        .add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+            }
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            locations.forEach((typeId, list) -> conn.geoAdd(tempGeoKey(typeId), list));
+            return null;
+        });
+        geoTypeIds.addAll(locations.keySet());
+        loaded.addAndGet(page.size());
+        long done = pages.incrementAndGet();
+        if (done % 10 == 0) {
+            log.info("缓存预热进度：{}/{}", loaded.get(), total.get());
+        }
+    }
+
+    /**
+     * 在一个管道中写入店铺的逻辑过期缓存，跳过读取之后已经失效的店铺
+     */
+    private void writeShops(List<Shop> shops, long readSeq) {
+        Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 2);
+        shops.forEach(shop -> values.put(CACHE_SHOP_KEY + shop.getId(), shop));
+        cacheClient.setAllWithLogicalExpire(values, CACHE_SHOP_TTL, TimeUnit.SECONDS, readSeq);
+    }
+
+    /**
+     * 预热时写入的临时地理位置key，哈希标签与 shop:geo:{typeId} 相同，集群模式下在同一个槽中，可以RENAME
+     */
+    private static String tempGeoKey(Long typeId) {
+        return "{" + SHOP_GEO_KEY + typeId + "}:warmup";
+    }
+}
@@ -0,0 +1,382 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.ReconcileReport;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillReconcileService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderConsumerPool;
+import com.hmdp.utils.OrderStreamMonitor;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SoldOutCache;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ * 秒杀券Redis与MySQL对账 服务实现类
+ * </p>
+ * 对账不变式：Redis剩余库存 + Redis已下单用户数 = 数据库剩余库存 + 数据库有效订单数 = 初始库存。
+ * 1.按主键游标分页读取订单表，用管道批量检查每个用户是否在Redis订单集合中；
+ * 2.用SSCAN分块遍历Redis订单集合，每块用一条IN查询检查数据库中是否有对应订单；
+ * 3.比较两边的库存总量，报告差异，按需修复。
+ * 全程只做普通的分页查询，不会一次加载全部订单，也不会锁表。
+ *
+ * @author jialin.zhou
+ */
+@Slf4j
+@Service
+public class SeckillReconcileServiceImpl implements ISeckillReconcileService {
+
+    /**
+     * 报告中最多列出的差异用户数
+     */
+    private static final int SAMPLE_SIZE = 100;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SoldOutCache soldOutCache;
+
+    @Resource
+    private OrderConsumerPool orderConsumerPool;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    /**
+     * 每页读取的订单数，以及每次SSCAN的数量
+     */
+    @Value("${hmdp.seckill.reconcile.page-size:1000}")
+    private int pageSize;
+
+    /**
+     * 定时对账时是否自动修复
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repairEnabled;
+
+    /**
+     * 秒杀结束后库存和订单集合继续保留的时间（毫秒），只对仍在保留期内的秒杀券对账
+     */
+    @Value("${hmdp.seckill.preheat.expire-grace-ms:600000}")
+    private long expireGraceMs;
+
+    /**
+     * 上一次对账发现的孤儿用户：优惠券ID -> {发现时间, 用户 -> 订单集合key}
+     */
+    private final Map<Long, Suspects> suspectedOrphans = new ConcurrentHashMap<>();
+
+    /**
+     * 定时对账已开始、且Redis数据仍在保留期内的秒杀券
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:300000}",
+            initialDelayString = "${hmdp.seckill.reconcile.interval-ms:300000}")
+    public void reconcileSeckillVouchers() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .select("voucher_id")
+                .le("begin_time", now)
+                .gt("end_time", now.minusNanos(expireGraceMs * 1000000))
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            // 多个节点同时调度时，只有一个节点执行对账
+            RLock lock = redissonClient.getLock(LOCK_RECONCILE_KEY + voucherId);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                ReconcileReport report = reconcile(voucherId, repairEnabled);
+                if (report.getMissingInRedis() > 0 || report.getOrphanInRedis() > 0
+                        || (report.getStockDiff() != null && report.getStockDiff() != 0)) {
+                    log.warn("秒杀券对账存在差异：{}", report);
+                }
+            } catch (Exception e) {
+                log.error("秒杀券对账失败，voucherId={}", voucherId, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public ReconcileReport reconcile(Long voucherId, boolean repair) {
+        ReconcileReport report = new ReconcileReport();
+        report.setVoucherId(voucherId);
+        report.setRepair(repair);
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            report.setMessage("秒杀券不存在");
+            return report;
+        }
+        int shards = seckillStockShards.shardsOf(voucherId);
+        report.setShards(shards);
+        List<String> stockKeys = new ArrayList<>();
+        List<String> orderKeys = new ArrayList<>();
+        if (shards > 1) {
+            for (int i = 0; i < shards; i++) {
+                stockKeys.add(SeckillStockShards.stockKey(voucherId, i));
+                orderKeys.add(SeckillStockShards.orderKey(voucherId, i));
+            }
+        } else {
+            stockKeys.add(SECKILL_STOCK_KEY + voucherId);
+            orderKeys.add(SECKILL_ORDER_KEY + voucherId);
+        }
+        if (readStock(stockKeys) == null) {
+            report.setMessage("秒杀券尚未预热");
+            return report;
+        }
+
+        // 1.数据库 -> Redis：数据库中有订单的用户必须在Redis订单集合中
+        long dbOrders = checkDbOrders(voucherId, shards, orderKeys, report, repair);
+        // 2.Redis -> 数据库：Redis订单集合中的用户应当有订单或者仍在队列中
+        Map<String, String> orphans = new HashMap<>();
+        for (String orderKey : orderKeys) {
+            scanOrderSet(voucherId, orderKey, orphans, report);
+        }
+        report.setOrphanInRedis((long) orphans.size());
+        if (repair) {
+            repairOrphans(voucherId, orphans, orderKeys, stockKeys, report);
+        }
+        suspectedOrphans.put(voucherId, new Suspects(System.currentTimeMillis(), orphans));
+
+        // 3.比较库存总量
+        long redisStock = readStock(stockKeys);
+        long redisUsers = 0;
+        for (String orderKey : orderKeys) {
+            Long size = stringRedisTemplate.opsForSet().size(orderKey);
+            redisUsers += size == null ? 0 : size;
+        }
+        long dbStock = seckillVoucherService.getById(voucherId).getStock();
+        long diff = (redisStock + redisUsers) - (dbStock + dbOrders);
+        report.setRedisStock(redisStock);
+        report.setRedisUsers(redisUsers);
+        report.setDbStock(dbStock);
+        report.setDbOrders(dbOrders);
+        report.setStockDiff(diff);
+        if (repair && diff != 0) {
+            // 秒杀进行中时两边的数据一直在变化，只在秒杀开始前或结束后修正库存
+            LocalDateTime now = LocalDateTime.now();
+            if (now.isBefore(voucher.getBeginTime()) || now.isAfter(voucher.getEndTime())) {
+                adjustStock(voucherId, stockKeys, -diff);
+                report.setStockAdjustment(-diff);
+            } else {
+                report.setMessage("秒杀进行中，库存差异只报告不修复");
+            }
+        }
+        if (report.getRepairedOrphans() > 0 || report.getStockAdjustment() > 0) {
+            // 库存被补回，清除各节点的售罄标记
+            soldOutCache.clear(voucherId);
+        }
+        return report;
+    }
+
+    /**
+     * 按主键游标分页读取有效订单，批量检查用户是否在Redis订单集合中，缺失的用户按需补回
+     * @return 有效订单数
+     */
+    private long checkDbOrders(Long voucherId, int shards, List<String> orderKeys, ReconcileReport report, boolean repair) {
+        long cursor = 0;
+        long count = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId).ne("status", 4).gt("id", cursor)
+                    .orderByAsc("id")
+                    .last("LIMIT " + pageSize)
+                    .list();
+            if (orders.isEmpty()) {
+                return count;
+            }
+            count += orders.size();
+            // SISMEMBER 批量放在一个管道中
+            List<Object> members = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Object execute(RedisOperations operations) throws DataAccessException {
+                    for (VoucherOrder order : orders) {
+                        operations.opsForSet().isMember(orderKeyOf(orderKeys, shards, order.getUserId()), order.getUserId().toString());
+                    }
+                    return null;
+                }
+            });
+            Map<String, List<String>> missing = new HashMap<>();
+            for (int i = 0; i < orders.size(); i++) {
+                if (Boolean.TRUE.equals(members.get(i))) {
+                    continue;
+                }
+                Long userId = orders.get(i).getUserId();
+                report.setMissingInRedis(report.getMissingInRedis() + 1);
+                if (report.getSampleMissing().size() < SAMPLE_SIZE) {
+                    report.getSampleMissing().add(userId.toString());
+                }
+                missing.computeIfAbsent(orderKeyOf(orderKeys, shards, userId), k -> new ArrayList<>()).add(userId.toString());
+            }
+            if (repair && !missing.isEmpty()) {
+                missing.forEach((key, users) -> stringRedisTemplate.opsForSet().add(key, users.toArray(new String[0])));
+                report.setRepairedMissing(report.getRepairedMissing() + missing.values().stream().mapToInt(List::size).sum());
+            }
+            cursor = orders.get(orders.size() - 1).getId();
+            if (orders.size() < pageSize) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * SSCAN分块遍历订单集合，找出数据库中没有有效订单的用户
+     */
+    private void scanOrderSet(Long voucherId, String orderKey, Map<String, String> orphans, ReconcileReport report) {
+        List<String> chunk = new ArrayList<>(pageSize);
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(orderKey, ScanOptions.scanOptions().count(pageSize).build())) {
+            while (cursor.hasNext()) {
+                chunk.add(cursor.next());
+                if (chunk.size() >= pageSize) {
+                    findOrphans(voucherId, orderKey, chunk, orphans, report);
+                    chunk.clear();
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            findOrphans(voucherId, orderKey, chunk, orphans, report);
+        }
+    }
+
+    private void findOrphans(Long voucherId, String orderKey, List<String> users,
+                             Map<String, String> orphans, ReconcileReport report) {
+        Set<String> ordered = voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId).ne("status", 4).in("user_id", users)
+                .list().stream()
+                .map(order -> order.getUserId().toString())
+                .collect(Collectors.toSet());
+        for (String user : users) {
+            // SSCAN可能重复返回同一个元素
+            if (!ordered.contains(user) && orphans.put(user, orderKey) == null
+                    && report.getSampleOrphans().size() < SAMPLE_SIZE) {
+                report.getSampleOrphans().add(user);
+            }
+        }
+    }
+
+    /**
+     * 修复孤儿用户：移出订单集合并补回一个库存。
+     * 孤儿可能是仍在队列中的订单，只有上一次对账已经发现、并且此后订单队列中最早的未确认消息
+     * 也晚于上一次对账时，才能确定该订单不会再落库。
+     */
+    private void repairOrphans(Long voucherId, Map<String, String> orphans, List<String> orderKeys,
+                               List<String> stockKeys, ReconcileReport report) {
+        Suspects previous = suspectedOrphans.get(voucherId);
+        if (previous == null || orphans.isEmpty()) {
+            return;
+        }
+        long lagMs = orderStreamMonitor.getLagMs(orderConsumerPool.streamKeyOf(voucherId));
+        // 最早未确认的消息产生于 now - lagMs，不晚于上一次对账时说明上一次对账之前的消息还没有处理完；
+        // lagMs为0表示队列中没有未确认的消息，可以修复
+        if (lagMs < 0 || (lagMs > 0 && System.currentTimeMillis() - lagMs <= previous.time)) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : orphans.entrySet()) {
+            String user = entry.getKey();
+            String orderKey = entry.getValue();
+            if (!orderKey.equals(previous.users.get(user))) {
+                continue;
+            }
+            Long removed = stringRedisTemplate.opsForSet().remove(orderKey, user);
+            if (removed != null && removed > 0) {
+                int bucket = orderKeys.indexOf(orderKey);
+                stringRedisTemplate.opsForValue().increment(stockKeys.get(bucket));
+                seckillStockShards.markRefilled(voucherId, bucket);
+                report.setRepairedOrphans(report.getRepairedOrphans() + 1);
+            }
+        }
+    }
+
+    /**
+     * 调整Redis库存，分桶时补回的库存放入第一个桶，扣减的库存依次从有余量的桶中扣除
+     */
+    private void adjustStock(Long voucherId, List<String> stockKeys, long delta) {
+        if (delta > 0) {
+            stringRedisTemplate.opsForValue().increment(stockKeys.get(0), delta);
+            seckillStockShards.markRefilled(voucherId, 0);
+            return;
+        }
+        long remaining = -delta;
+        for (String stockKey : stockKeys) {
+            if (remaining <= 0) {
+                return;
+            }
+            String value = stringRedisTemplate.opsForValue().get(stockKey);
+            long stock = value == null ? 0 : Long.parseLong(value);
+            long take = Math.min(stock, remaining);
+            if (take > 0) {
+                stringRedisTemplate.opsForValue().decrement(stockKey, take);
+                remaining -= take;
+            }
+        }
+    }
+
+    /**
+     * 读取Redis库存之和，任意一个库存key不存在时返回null
+     */
+    private Long readStock(List<String> stockKeys) {
+        // 分桶的库存key位于不同的hash tag，集群模式下不能用一条MGET读取
+        long sum = 0;
+        for (String stockKey : stockKeys) {
+            String value = stringRedisTemplate.opsForValue().get(stockKey);
+            if (value == null) {
+                return null;
+            }
+            sum += Long.parseLong(value);
+        }
+        return sum;
+    }
+
+    private static String orderKeyOf(List<String> orderKeys, int shards, Long userId) {
+        return orderKeys.get(shards > 1 ? SeckillStockShards.homeBucket(userId, shards) : 0);
+    }
+
+    private static class Suspects {
+        private final long time;
+        private final Map<String, String> users;
+
+        Suspects(long time, Map<String, String> users) {
+            this.time = time;
+            this.users = users;
+        }
+    }
+}
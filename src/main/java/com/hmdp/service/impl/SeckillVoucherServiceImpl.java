@@ -1,11 +1,29 @@
 package com.hmdp.service.impl;
 
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SoldOutCache;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -13,7 +31,197 @@ import org.springframework.stereotype.Service;
  *
  * @author jialin.zhou
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    /**
+     * 重建订单集合时每页读取的订单数
+     */
+    private static final int PRELOAD_PAGE_SIZE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SoldOutCache soldOutCache;
+
+    /**
+     * 提前多久（毫秒）预热即将开始的秒杀券
+     */
+    @Value("${hmdp.seckill.preheat.lead-ms:300000}")
+    private long preheatLeadMs;
+
+    /**
+     * 秒杀结束后库存和订单集合继续保留的时间（毫秒）
+     */
+    @Value("${hmdp.seckill.preheat.expire-grace-ms:600000}")
+    private long expireGraceMs;
+
+    /**
+     * 秒杀结束后时间窗口继续保留的时间（毫秒），在此期间的请求会被识别为"已经结束"
+     */
+    @Value("${hmdp.seckill.preheat.window-retention-ms:86400000}")
+    private long windowRetentionMs;
+
+    /**
+     * 定时预热秒杀券：将即将开始或正在进行、但Redis中还没有时间窗口的秒杀券加载到Redis中。
+     * 时间窗口key同时作为预热标记，Redis被清空或重启后会在下一次调度时自动重新预热。
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval-ms:10000}")
+    public void preheatSeckillVouchers() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = query()
+                .le("begin_time", now.plusNanos(preheatLeadMs * 1000000))
+                .gt("end_time", now)
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            int shards = seckillStockShards.shardsOf(voucherId);
+            String windowKey = shards > 1 ? SeckillStockShards.windowKey(voucherId, 0) : SECKILL_WINDOW_KEY + voucherId;
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(windowKey))) {
+                continue;
+            }
+            try {
+                preheat(voucher);
+            } catch (Exception e) {
+                log.error("预热秒杀券失败，voucherId={}", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 预热秒杀券：将订单集合、库存和时间窗口写入Redis，并设置在秒杀结束后过期。
+     * 新增秒杀券后的预热和定时预热可能在多个节点上同时执行，持有分布式锁后再次检查时间窗口，
+     * 已经被其他节点预热的秒杀券直接跳过
+     * @param voucher 秒杀券
+     */
+    @Override
+    public void preheat(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        RLock lock = redissonClient.getLock(LOCK_PREHEAT_KEY + voucherId);
+        if (!lock.tryLock()) {
+            log.info("其他节点正在预热秒杀券，voucherId={}", voucherId);
+            return;
+        }
+        try {
+            int shards = seckillStockShards.shardsOf(voucherId);
+            String windowKey = shards > 1 ? SeckillStockShards.windowKey(voucherId, 0) : SECKILL_WINDOW_KEY + voucherId;
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(windowKey))) {
+                return;
+            }
+            doPreheat(voucher);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 1.Redis中没有库存时，秒杀尚未开始则清空订单集合，已经开始（Redis数据丢失后重建）则从数据库加载已下单的用户；
+     *   库存还在时订单集合也还在，不删除也不重建，否则秒杀进行中会丢失一人一单的记录；
+     * 2.库存只在key不存在时写入（SETNX），不会覆盖正在扣减的库存，分桶的秒杀券将库存拆分到各个桶中；
+     * 3.写入时间窗口，由秒杀脚本根据Redis服务器时间判断是否在窗口内；
+     * 4.清除所有节点上的售罄标记。
+     */
+    private void doPreheat(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        long begin = toEpochMilli(voucher.getBeginTime());
+        long end = toEpochMilli(voucher.getEndTime());
+        boolean started = begin <= System.currentTimeMillis();
+        // 已分桶的秒杀券沿用原来的桶数，否则按配置决定是否分桶
+        int shards = seckillStockShards.shardsOf(voucherId);
+        if (shards <= 1 && seckillStockShards.isEnabled()) {
+            shards = seckillStockShards.getStockShards();
+        }
+        List<String> stockKeys = new ArrayList<>();
+        List<String> orderKeys = new ArrayList<>();
+        List<String> windowKeys = new ArrayList<>();
+        if (shards > 1) {
+            for (int i = 0; i < shards; i++) {
+                stockKeys.add(SeckillStockShards.stockKey(voucherId, i));
+                orderKeys.add(SeckillStockShards.orderKey(voucherId, i));
+                windowKeys.add(SeckillStockShards.windowKey(voucherId, i));
+            }
+        } else {
+            stockKeys.add(SECKILL_STOCK_KEY + voucherId);
+            orderKeys.add(SECKILL_ORDER_KEY + voucherId);
+            windowKeys.add(SECKILL_WINDOW_KEY + voucherId);
+        }
+
+        Long existing = stringRedisTemplate.countExistingKeys(stockKeys);
+        if (existing != null && existing > 0) {
+            log.warn("秒杀券的库存仍在Redis中，只重建时间窗口，voucherId={}，已存在的库存key数={}", voucherId, existing);
+        } else {
+            // 1.订单集合
+            stringRedisTemplate.delete(orderKeys);
+            if (started) {
+                loadOrderedUsers(voucherId, shards, orderKeys);
+            }
+            // 2.库存
+            if (shards > 1) {
+                seckillStockShards.split(voucherId, voucher.getStock(), shards);
+            } else {
+                stringRedisTemplate.opsForValue().setIfAbsent(stockKeys.get(0), voucher.getStock().toString());
+            }
+        }
+        // 3.时间窗口
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(begin));
+        window.put("end", String.valueOf(end));
+        for (String windowKey : windowKeys) {
+            stringRedisTemplate.opsForHash().putAll(windowKey, window);
+            stringRedisTemplate.expireAt(windowKey, new Date(end + windowRetentionMs));
+        }
+        // 4.秒杀结束后过期
+        Date expireAt = new Date(end + expireGraceMs);
+        for (int i = 0; i < stockKeys.size(); i++) {
+            stringRedisTemplate.expireAt(stockKeys.get(i), expireAt);
+            stringRedisTemplate.expireAt(orderKeys.get(i), expireAt);
+        }
+        // 5.清除售罄标记
+        soldOutCache.clear(voucherId);
+        log.info("秒杀券预热完成，voucherId={}，库存={}，分桶数={}", voucherId, voucher.getStock(), shards);
+    }
+
+    /**
+     * 按主键分页读取已下单（未取消）的用户，写入对应的订单集合
+     */
+    private void loadOrderedUsers(Long voucherId, int shards, List<String> orderKeys) {
+        long cursor = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId).ne("status", 4).gt("id", cursor)
+                    .orderByAsc("id")
+                    .last("LIMIT " + PRELOAD_PAGE_SIZE)
+                    .list();
+            if (orders.isEmpty()) {
+                return;
+            }
+            Map<String, List<String>> users = new HashMap<>();
+            for (VoucherOrder order : orders) {
+                String orderKey = orderKeys.get(shards > 1 ? SeckillStockShards.homeBucket(order.getUserId(), shards) : 0);
+                users.computeIfAbsent(orderKey, k -> new ArrayList<>()).add(order.getUserId().toString());
+            }
+            users.forEach((key, members) -> stringRedisTemplate.opsForSet().add(key, members.toArray(new String[0])));
+            cursor = orders.get(orders.size() - 1).getId();
+            if (orders.size() < PRELOAD_PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -8,9 +9,11 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheInvalidationService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
@@ -24,6 +27,7 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.management.RuntimeMBeanException;
 
@@ -32,6 +36,7 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -52,6 +57,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private ICacheInvalidationService cacheInvalidationService;
+
+    @PostConstruct
+    private void init() {
+        // 注册店铺ID的布隆过滤器，按ID分页读取全部店铺ID构建
+        idBloomFilters.register(IdBloomFilters.SHOP, (lastId, limit) -> query()
+                .select("id").gt("id", lastId).orderByAsc("id").last("LIMIT " + limit)
+                .list().stream().map(Shop::getId).collect(Collectors.toList()));
+    }
+
     /**
      * 根据ID查询店铺信息。
      *
@@ -61,7 +80,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Override
     public Result queryById(Long id) {
         // 使用缓存并应用逻辑过期时间来避免缓存击穿
-        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        // 布隆过滤器判断一定不存在的店铺直接返回
+        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class,
+                shopId -> idBloomFilters.mightContain(IdBloomFilters.SHOP, shopId), this::getById, CACHE_SHOP_TTL, TimeUnit.SECONDS);
         if (shop == null){
             return Result.fail("店铺不存在");
         }
@@ -127,6 +148,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //        return shop;
 //    }
 
+    /**
+     * 新增店铺
+     * @param shop 店铺数据
+     * @return 店铺id
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 写入布隆过滤器
+        idBloomFilters.add(IdBloomFilters.SHOP, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 更新店铺信息
      * @param shop 包含更新后店铺信息的对象
@@ -142,8 +177,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 更新数据库中的店铺信息
         updateById(shop);
-        // 删除缓存中对应的店铺信息，以保证缓存与数据库一致
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 事务提交后删除缓存中对应的店铺信息并通知各节点删除本地缓存，延迟再删除一次，失败时持久化重试
+        cacheInvalidationService.invalidate(CACHE_SHOP_KEY + id);
         // 返回成功结果
         return Result.ok();
     }
@@ -201,12 +236,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             ids.add(Long.valueOf(shopIdStr));
             distanceMap.put(shopIdStr, distance);
         });
-        // 根据截取到的ID查询商店信息，并设置每个商店的距离信息
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops){
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
-        }
+        // 根据截取到的ID批量查询店铺缓存（一次MGET，未命中的一次批量查询数据库），按距离顺序返回
+        // 缓存中的对象可能来自一级缓存，复制后再设置每个商店的距离信息
+        List<Shop> shops = cacheClient.queryBatchWithLogicalExpire(CACHE_SHOP_KEY, ids, Shop.class,
+                        this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.SECONDS)
+                .stream()
+                .map(shop -> BeanUtil.copyProperties(shop, Shop.class)
+                        .setDistance(distanceMap.get(shop.getId().toString()).getValue()))
+                .collect(Collectors.toList());
         // 返回查询到的商店信息
         // log.info("店铺信息: {}", shops);
         return Result.ok(shops);
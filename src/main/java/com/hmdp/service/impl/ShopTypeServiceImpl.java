@@ -42,16 +42,28 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
             List<ShopType> shopTypes = JSONUtil.toList(shopTypeJson, ShopType.class);
             return Result.ok(shopTypes);
         }
-        // 缓存中不存在商铺类型数据时，从数据库中查询
-        List<ShopType> shopTypeList = query().orderByAsc("sort").list();
+        // 缓存中不存在商铺类型数据时，从数据库中查询并写入Redis缓存
+        List<ShopType> shopTypeList = loadShopTypeCache();
         // 如果数据库中也不存在商铺类型数据，则返回错误信息
         if (shopTypeList.isEmpty()){
             return Result.fail("商铺类型不存在");
         }
-        // 将从数据库查询到的商铺类型数据写入Redis缓存
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_KEY,JSONUtil.toJsonStr(shopTypeList));
         // 返回查询结果
         return Result.ok(shopTypeList);
     }
 
+    /**
+     * 从数据库查询全部商铺类型，不为空时写入Redis缓存
+     *
+     * @return 商铺类型列表，按sort排序
+     */
+    @Override
+    public List<ShopType> loadShopTypeCache() {
+        List<ShopType> shopTypeList = query().orderByAsc("sort").list();
+        if (!shopTypeList.isEmpty()){
+            stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_KEY,JSONUtil.toJsonStr(shopTypeList));
+        }
+        return shopTypeList;
+    }
+
 }
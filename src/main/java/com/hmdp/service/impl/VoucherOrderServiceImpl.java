@@ -7,25 +7,33 @@ import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderConsumerPool;
+import com.hmdp.utils.OrderPendingRecovery;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.OrderStreamMonitor;
+import com.hmdp.utils.OrderTimeoutQueue;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SoldOutCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
  * <p>
@@ -46,18 +54,77 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+    @Resource
+    private OrderConsumerPool orderConsumerPool;
+    @Resource
+    private SoldOutCache soldOutCache;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+    @Resource
+    private OrderPendingRecovery orderPendingRecovery;
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    /**
+     * 是否开启批量消费模式，开启后每次从消息队列读取多条订单，按优惠券分组批量落库
+     */
+    @Value("${hmdp.seckill.order.batch-enabled:false}")
+    private boolean batchEnabled;
+
+    /**
+     * 批量消费模式下每次最多读取的订单数量
+     */
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 批量消费模式下读取到第一条消息后，继续等待凑满一批的最长时间（毫秒）
+     */
+    @Value("${hmdp.seckill.order.batch-linger-ms:50}")
+    private long batchLingerMs;
+
+    /**
+     * 订单落库方式：lock 使用分布式锁加查询保证一人一单；
+     * unique 依赖tb_voucher_order(user_id, voucher_id)唯一索引，直接插入并检测主键冲突，不再加锁；
+     * 唯一索引不存在时启动失败，避免在没有任何重复下单保护的情况下运行
+     */
+    @Value("${hmdp.seckill.order.persist-mode:lock}")
+    private String persistMode;
+
+    /**
+     * tb_voucher_order是否有(user_id, voucher_id, active)唯一索引，有时取消订单需要将active置为NULL
+     */
+    private boolean activeIndex;
+
+    /**
+     * 组合秒杀一次最多购买的优惠券数量
+     */
+    @Value("${hmdp.seckill.bundle.max-size:10}")
+    private int bundleMaxSize;
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHander());
+        int indexColumns = getBaseMapper().countUniqueIndex("uniq_user_voucher");
+        if (indexColumns == 2) {
+            // 旧版本的(user_id, voucher_id)唯一索引会让已取消订单的用户无法重新下单
+            throw new IllegalStateException("唯一索引uniq_user_voucher缺少active列，请按db/voucher_order_unique.sql重建索引");
+        }
+        if ("unique".equals(persistMode) && indexColumns == 0) {
+            throw new IllegalStateException("persist-mode=unique 依赖唯一索引uniq_user_voucher，请先执行db/voucher_order_unique.sql，或改用persist-mode=lock");
+        }
+        activeIndex = indexColumns > 0;
+        // 启动订单消费者池，批量模式下每次读取一批订单，否则逐条读取
+        orderConsumerPool.start(batchEnabled ? batchSize : 1, batchEnabled ? batchLingerMs : 0, this::handleVoucherOrders);
+        // 启动未支付订单的超时队列
+        orderTimeoutQueue.start(this::cancelTimeoutOrders);
     }
 
 
@@ -87,7 +154,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        // 获取当前用户ID
 //        Long userId = UserHolder.getUser().getId();
 //        // 尝试创建锁对象
-//        // SimpleRedisLock lock = new SimpleRedisLock("order:" + userId , stringRedisTemplate);
 //        RLock lock = redissonClient.getLock("lock:order:" + userId);
 //
 //        // 获取锁
@@ -107,86 +173,65 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    private class VoucherOrderHander implements Runnable{
-        String queueName = "stream.orders";
-        /**
-         * 该方法是一个无限循环，用于持续从消息队列中获取订单信息并处理。
-         * 它不断监听指定的消息队列，一旦有新的订单信息，则对其进行处理。
-         * 处理流程包括：获取订单信息、解析订单、处理订单、确认消息处理完成。
-         */
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常111", e);
-                    handlePendingList();
-                }
-            }
+    /**
+     * 秒杀脚本返回值对应的失败原因
+     * @param res 1：库存不足；2：重复下单；3：秒杀尚未开始；4：秒杀已经结束
+     */
+    private static String seckillFailMessage(int res) {
+        switch (res) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始";
+            default:
+                return "秒杀已经结束";
         }
+    }
 
-
-        /**
-         * 处理待处理订单列表。
-         * 该方法从Redis的指定流中读取消息（订单信息），处理这些消息（下单操作），并确认处理成功的消息。
-         * 使用Redis Stream作为消息队列，以group和consumer的方式消费消息。
-         */
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 从Redis流中读取一条消息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "ci"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-
-                    // 判断是否成功获取到消息
-                    if (list == null || list.isEmpty()) {
-                        // 若没有消息，则退出循环
-                        break;
-                    }
-
-                    // 处理获取到的消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    createVoucherOrder(voucherOrder);
-
-                    // 确认消息处理成功
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    // 记录处理过程中出现的异常
-                    log.error("处理pending-list异常", e);
-                    try {
-                        // 异常处理后短暂休眠，避免快速重试造成资源压力
-                        Thread.sleep(20);
-                    } catch (InterruptedException interruptedException) {
-                        interruptedException.printStackTrace();
-                    }
-                }
+    /**
+     * 处理消费者池读取到的一批订单消息
+     * @param records 订单消息
+     * @return 处理成功（可以确认）的消息ID
+     */
+    private List<RecordId> handleVoucherOrders(List<MapRecord<String, Object, Object>> records) {
+        List<RecordId> handled = new ArrayList<>(records.size());
+        // 组合订单每条消息在一个事务中落库，其余订单按原方式处理
+        List<MapRecord<String, Object, Object>> singles = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            if (!record.getValue().containsKey("bundle")) {
+                singles.add(record);
+                continue;
+            }
+            try {
+                createBundleOrders(parseBundle(record));
+                handled.add(record.getId());
+            } catch (Exception e) {
+                log.error("处理组合订单异常，recordId={}", record.getId(), e);
+                orderPendingRecovery.recordFailure(record, e);
             }
         }
-
+        if (singles.isEmpty()) {
+            return handled;
+        }
+        if (batchEnabled) {
+            handled.addAll(handleVoucherOrderBatch(singles));
+            return handled;
+        }
+        for (MapRecord<String, Object, Object> record : singles) {
+            try {
+                // 解析数据并创建订单
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                createVoucherOrder(voucherOrder);
+                handled.add(record.getId());
+            } catch (Exception e) {
+                // 处理失败的消息不确认，留在pending-list中等待重试
+                log.error("处理订单异常，recordId={}", record.getId(), e);
+                orderPendingRecovery.recordFailure(record, e);
+            }
+        }
+        return handled;
     }
 
 
@@ -241,24 +286,112 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 本地已标记售罄，直接返回，不再访问Redis
+        if (soldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        String streamKey = orderConsumerPool.streamKeyOf(voucherId);
+        // 订单队列积压过多时开启背压，不再扣减库存
+        if (orderStreamMonitor.isCongested(streamKey)) {
+            return Result.fail("排队人数过多，请稍后再试");
+        }
         Long userId = UserHolder.getUser().getId(); // 获取当前用户ID
         long orderId = redisIdWorker.nextId("order"); // 获取订单ID
-        // 执行lua脚本进行秒杀操作，校验库存和防止重复下单
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
-        // 解析lua脚本返回的结果
-        int res = result.intValue();
+        int res;
+        if (seckillStockShards.shardsOf(voucherId) > 1) {
+            // 库存分桶的热点优惠券，按用户路由到各个桶中扣减库存
+            res = seckillStockShards.seckill(voucherId, userId, orderId, streamKey);
+        } else {
+            // 执行lua脚本进行秒杀操作，校验库存和防止重复下单
+            Long result = redisScriptRegistry.execute(
+                    "seckill", Long.class,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), streamKey,
+                    String.valueOf(orderStatusTracker.getStatusTtlSeconds())
+            );
+            // 解析lua脚本返回的结果
+            res = result.intValue();
+        }
+        // 库存不足时标记售罄，后续请求在本地直接拒绝
+        if (res == 1) {
+            soldOutCache.markSoldOut(voucherId);
+        }
         // 如果结果不为0，则表示无法购买，根据返回值提供具体原因
         if (res != 0){
-            return Result.fail(res == 1 ? "库存不足" : "不能重复下单");
+            return Result.fail(seckillFailMessage(res));
         }
         // 返回生成的订单ID
         return Result.ok(orderId);
     }
 
+    /**
+     * 校验组合秒杀的优惠券ID：去掉空值和重复的ID并排序，数量为0或超过上限时拒绝
+     * @param voucherIds 秒杀券ID
+     * @return 成功时data为整理后的秒杀券ID
+     */
+    @Override
+    public Result checkBundle(List<Long> voucherIds) {
+        List<Long> ids = voucherIds == null ? Collections.emptyList()
+                : voucherIds.stream().filter(Objects::nonNull).distinct().sorted().collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Result.fail("请选择要购买的优惠券");
+        }
+        if (ids.size() > bundleMaxSize) {
+            return Result.fail("一次最多购买" + bundleMaxSize + "张优惠券");
+        }
+        return Result.ok(ids);
+    }
+
+    /**
+     * 组合秒杀：一次脚本调用检查并扣减多张秒杀券的库存，全部成功或全部失败，整个组合只发送一条订单消息
+     * @param voucherIds 秒杀券ID
+     * @return 各张秒杀券对应的订单ID
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Result seckillBundle(List<Long> voucherIds) {
+        Result checked = checkBundle(voucherIds);
+        if (!checked.getSuccess()) {
+            return checked;
+        }
+        List<Long> ids = (List<Long>) checked.getData();
+        for (Long voucherId : ids) {
+            if (soldOutCache.isSoldOut(voucherId)) {
+                return Result.fail("优惠券" + voucherId + "库存不足");
+            }
+            // 分桶库存的key分布在不同的hash tag中，无法在一个脚本中原子地扣减
+            if (seckillStockShards.shardsOf(voucherId) > 1) {
+                return Result.fail("优惠券" + voucherId + "不支持组合购买");
+            }
+        }
+        String streamKey = orderConsumerPool.streamKeyOf(ids.get(0));
+        if (orderStreamMonitor.isCongested(streamKey)) {
+            return Result.fail("排队人数过多，请稍后再试");
+        }
+        Long userId = UserHolder.getUser().getId();
+        List<String> args = new ArrayList<>(3 + ids.size() * 2);
+        args.add(userId.toString());
+        args.add(streamKey);
+        args.add(String.valueOf(orderStatusTracker.getStatusTtlSeconds()));
+        List<Long> orderIds = new ArrayList<>(ids.size());
+        for (Long voucherId : ids) {
+            long orderId = redisIdWorker.nextId("order");
+            orderIds.add(orderId);
+            args.add(voucherId.toString());
+            args.add(String.valueOf(orderId));
+        }
+        // 返回{结果, 失败的优惠券ID}
+        List<Long> result = redisScriptRegistry.execute("seckill_bundle", List.class, Collections.emptyList(), args.toArray());
+        int res = result.get(0).intValue();
+        if (res == 1) {
+            soldOutCache.markSoldOut(result.get(1));
+        }
+        if (res != 0) {
+            return Result.fail("优惠券" + result.get(1) + seckillFailMessage(res));
+        }
+        return Result.ok(orderIds);
+    }
+
 
 
 //    /**
@@ -335,11 +468,65 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     /**
-     * 创建代金券订单
+     * 创建代金券订单，根据配置选择落库方式
      * @param voucherOrder 代金券订单对象，包含订单详细信息
-     * @Transactional 注解表明该方法是一个事务方法，保证数据的一致性
      */
     private void createVoucherOrder(VoucherOrder voucherOrder) {
+        if ("unique".equals(persistMode)) {
+            createVoucherOrderUnique(voucherOrder);
+        } else {
+            createVoucherOrderWithLock(voucherOrder);
+        }
+    }
+
+    /**
+     * 基于唯一索引创建代金券订单：在一个事务中先插入订单，再扣减库存。
+     * 重复下单由唯一索引uniq_user_voucher拦截，不需要分布式锁和查询，每单只有两条SQL。
+     * @param voucherOrder 代金券订单对象，包含订单详细信息
+     */
+    private void createVoucherOrderUnique(VoucherOrder voucherOrder) {
+        List<Long> ids = Collections.singletonList(voucherOrder.getId());
+        String reason;
+        try {
+            reason = transactionTemplate.execute(status -> {
+                // 1.插入订单，同一用户重复下单时唯一索引冲突；已取消订单的active为NULL，不参与唯一约束
+                save(voucherOrder);
+                // 2.扣减库存 set stock = stock - 1 where voucher_id = ? and stock > 0
+                boolean success = seckillVoucherService.update()
+                        .setSql("stock = stock - 1")
+                        .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
+                        .update();
+                if (!success) {
+                    // 库存不足，回滚已插入的订单
+                    status.setRollbackOnly();
+                    return "库存不足";
+                }
+                return null;
+            });
+        } catch (DuplicateKeyException e) {
+            // 同一条消息被重复投递时，订单其实已经落库，按数据库中的状态处理
+            VoucherOrder existing = query().select("id", "status").eq("id", voucherOrder.getId()).one();
+            if (existing != null) {
+                voucherOrder.setStatus(existing.getStatus());
+                onOrdersRedelivered(Collections.singletonList(voucherOrder));
+                return;
+            }
+            reason = "不允许重复下单";
+        }
+        if (reason != null) {
+            log.error("{}！userId={}，voucherId={}", reason, voucherOrder.getUserId(), voucherOrder.getVoucherId());
+            orderStatusTracker.markFailed(ids, reason);
+            return;
+        }
+        onOrdersPersisted(Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 基于分布式锁创建代金券订单，并记录订单的处理状态
+     * @param voucherOrder 代金券订单对象，包含订单详细信息
+     * @Transactional 注解表明该方法是一个事务方法，保证数据的一致性
+     */
+    private void createVoucherOrderWithLock(VoucherOrder voucherOrder) {
         Long userId = voucherOrder.getUserId();
         Long voucherId = voucherOrder.getVoucherId();
         // 创建锁对象
@@ -350,16 +537,29 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!isLock) {
             // 获取锁失败，直接返回失败或者重试
             log.error("不允许重复下单！");
+            orderStatusTracker.markFailed(Collections.singletonList(voucherOrder.getId()), "不允许重复下单");
             return;
         }
 
         try {
-            // 5.1.查询订单
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+            // 5.1.查询订单（已取消的订单不算，但要查出本订单自己，消息重复投递时它可能已经落库甚至被取消）
+            List<VoucherOrder> existing = query().select("id", "status")
+                    .eq("user_id", userId).eq("voucher_id", voucherId)
+                    .and(w -> w.ne("status", 4).or().eq("id", voucherOrder.getId()))
+                    .list();
+            for (VoucherOrder order : existing) {
+                if (order.getId().equals(voucherOrder.getId())) {
+                    // 同一条消息被重复投递，订单其实已经落库
+                    voucherOrder.setStatus(order.getStatus());
+                    onOrdersRedelivered(Collections.singletonList(voucherOrder));
+                    return;
+                }
+            }
             // 5.2.判断是否存在
-            if (count > 0) {
+            if (!existing.isEmpty()) {
                 // 用户已经购买过了
                 log.error("不允许重复下单！");
+                orderStatusTracker.markFailed(Collections.singletonList(voucherOrder.getId()), "不允许重复下单");
                 return;
             }
 
@@ -371,11 +571,13 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             if (!success) {
                 // 扣减失败
                 log.error("库存不足！");
+                orderStatusTracker.markFailed(Collections.singletonList(voucherOrder.getId()), "库存不足");
                 return;
             }
 
-            // 7.创建订单
+            // 7.创建订单，已取消的订单保留原记录
             save(voucherOrder);
+            onOrdersPersisted(Collections.singletonList(voucherOrder));
         } finally {
             // 释放锁
             redisLock.unlock();
@@ -384,4 +586,288 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
 
 
+    /**
+     * 批量处理订单消息：按优惠券分组，每组在一个事务内批量扣减库存、批量插入订单。
+     * 某一组批量处理失败时，退化为逐条调用createVoucherOrder处理该组订单。
+     * @param records 订单消息
+     * @return 处理成功（可以确认）的消息ID
+     */
+    private List<RecordId> handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> records) {
+        // 1.解析消息并按优惠券分组
+        Map<Long, List<MapRecord<String, Object, Object>>> groups = new LinkedHashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            Long voucherId = Long.valueOf(record.getValue().get("voucherId").toString());
+            groups.computeIfAbsent(voucherId, k -> new ArrayList<>()).add(record);
+        }
+        List<RecordId> handled = new ArrayList<>(records.size());
+        for (Map.Entry<Long, List<MapRecord<String, Object, Object>>> entry : groups.entrySet()) {
+            List<MapRecord<String, Object, Object>> group = entry.getValue();
+            List<VoucherOrder> orders = group.stream()
+                    .map(record -> BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true))
+                    .collect(Collectors.toList());
+            try {
+                // 2.批量落库，事务提交后记录订单状态
+                List<VoucherOrder> redelivered = new ArrayList<>();
+                List<VoucherOrder> created = createVoucherOrderBatch(entry.getKey(), orders, redelivered);
+                group.forEach(record -> handled.add(record.getId()));
+                Set<Long> doneIds = new HashSet<>();
+                created.forEach(order -> doneIds.add(order.getId()));
+                redelivered.forEach(order -> doneIds.add(order.getId()));
+                onOrdersPersisted(created);
+                onOrdersRedelivered(redelivered);
+                orderStatusTracker.markFailed(orders.stream().map(VoucherOrder::getId)
+                        .filter(id -> !doneIds.contains(id)).collect(Collectors.toList()), "不允许重复下单");
+            } catch (Exception e) {
+                // 3.批量失败，逐条处理
+                log.warn("批量创建订单失败，voucherId={}，退化为逐条处理", entry.getKey(), e);
+                for (int i = 0; i < group.size(); i++) {
+                    try {
+                        createVoucherOrder(orders.get(i));
+                        handled.add(group.get(i).getId());
+                    } catch (Exception ex) {
+                        // 处理失败的消息不确认，留在pending-list中等待重试
+                        log.error("处理订单异常，recordId={}", group.get(i).getId(), ex);
+                        orderPendingRecovery.recordFailure(group.get(i), ex);
+                    }
+                }
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * 在一个事务中批量创建同一优惠券的订单
+     * 1.剔除批次内重复的用户以及已经下过单的用户，重复投递、已经落库的订单放入redelivered；
+     * 2.用一条条件UPDATE一次性扣减n个库存，库存不足时整体回滚；
+     * 3.用一条多行INSERT写入全部订单。
+     * @param voucherId 优惠券ID
+     * @param orders 该优惠券的订单
+     * @param redelivered 输出参数，重复投递的消息对应的已落库订单，status为数据库中的状态
+     * @return 成功创建的订单，其余订单因重复下单被拒绝
+     */
+    private List<VoucherOrder> createVoucherOrderBatch(Long voucherId, List<VoucherOrder> orders, List<VoucherOrder> redelivered) {
+        return transactionTemplate.execute(status -> {
+            // 1.批次内按用户去重
+            Map<Long, VoucherOrder> byUser = new LinkedHashMap<>();
+            for (VoucherOrder order : orders) {
+                if (byUser.putIfAbsent(order.getUserId(), order) != null) {
+                    log.error("不允许重复下单！userId={}", order.getUserId());
+                }
+            }
+            // 2.剔除已经下过单（未取消）的用户，已取消的订单不参与唯一约束，可以直接插入新订单；
+            //   批次内订单自己的记录也要查出来，消息重复投递时它可能已经落库甚至被取消
+            List<Long> ids = byUser.values().stream().map(VoucherOrder::getId).collect(Collectors.toList());
+            List<VoucherOrder> existing = query().select("id", "user_id", "status")
+                    .eq("voucher_id", voucherId).in("user_id", byUser.keySet())
+                    .and(w -> w.ne("status", 4).or().in("id", ids))
+                    .list();
+            for (VoucherOrder order : existing) {
+                VoucherOrder own = byUser.remove(order.getUserId());
+                if (own != null && own.getId().equals(order.getId())) {
+                    own.setStatus(order.getStatus());
+                    redelivered.add(own);
+                } else if (own != null) {
+                    log.error("不允许重复下单！userId={}", order.getUserId());
+                }
+            }
+            if (byUser.isEmpty()) {
+                return Collections.<VoucherOrder>emptyList();
+            }
+            // 3.批量扣减库存 set stock = stock - n where voucher_id = ? and stock >= n
+            int n = byUser.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + n)
+                    .eq("voucher_id", voucherId).ge("stock", n)
+                    .update();
+            if (!success) {
+                // 库存不足以支撑整批，抛出异常回滚，由调用方逐条处理
+                throw new IllegalStateException("库存不足，无法批量扣减" + n + "个库存");
+            }
+            // 4.批量创建订单
+            List<VoucherOrder> created = new ArrayList<>(byUser.values());
+            getBaseMapper().insertBatch(created);
+            return created;
+        });
+    }
+
+    /**
+     * 订单落库后记录状态，并登记未支付超时任务
+     */
+    private void onOrdersPersisted(List<VoucherOrder> orders) {
+        orderStatusTracker.markPersisted(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        orderTimeoutQueue.schedule(orders);
+    }
+
+    /**
+     * 重复投递的消息对应的订单已经落库，按数据库中的状态处理，不能记为失败：
+     * 仍未支付的订单按新落库处理，重复登记超时任务是安全的；已支付的订单记为已落库；
+     * 已取消的订单保持CANCELLED状态不变
+     * @param orders 已落库的订单，status为数据库中的状态
+     */
+    private void onOrdersRedelivered(List<VoucherOrder> orders) {
+        List<VoucherOrder> unpaid = new ArrayList<>();
+        List<Long> paid = new ArrayList<>();
+        for (VoucherOrder order : orders) {
+            if (order.getStatus() == 1) {
+                unpaid.add(order);
+            } else if (order.getStatus() != 4) {
+                paid.add(order.getId());
+            }
+        }
+        onOrdersPersisted(unpaid);
+        orderStatusTracker.markPersisted(paid);
+    }
+
+    /**
+     * 取消超时未支付的订单。按优惠券分组：
+     * 1.在一个事务中锁定仍未支付的订单，改为已取消，并归还数据库库存；
+     * 2.提交后用脚本原子地将用户移出Redis订单集合并归还Redis库存，清除售罄标记。
+     * 已支付或已取消的订单直接跳过，因此重复执行是安全的；
+     * Redis归还失败时订单已经取消，残留的用户会被对账任务识别为孤儿并修复。
+     * @param tasks 到期的超时任务
+     */
+    private void cancelTimeoutOrders(List<OrderTimeoutQueue.Task> tasks) {
+        Map<Long, List<OrderTimeoutQueue.Task>> groups = tasks.stream()
+                .collect(Collectors.groupingBy(OrderTimeoutQueue.Task::getVoucherId));
+        List<OrderTimeoutQueue.Task> done = new ArrayList<>(tasks.size());
+        for (Map.Entry<Long, List<OrderTimeoutQueue.Task>> entry : groups.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<Long> ids = entry.getValue().stream().map(OrderTimeoutQueue.Task::getOrderId).collect(Collectors.toList());
+            List<VoucherOrder> cancelled;
+            try {
+                cancelled = transactionTemplate.execute(status -> {
+                    // 1.1.锁定仍未支付的订单
+                    List<VoucherOrder> unpaid = query().select("id", "user_id")
+                            .in("id", ids).eq("status", 1).last("FOR UPDATE").list();
+                    if (unpaid.isEmpty()) {
+                        return unpaid;
+                    }
+                    // 1.2.取消订单 set status = 4, active = NULL where id in (...) and status = 1，
+                    // active为NULL后该订单不再占用(user_id, voucher_id, active)唯一索引，用户可以重新下单
+                    update().set("status", 4).set(activeIndex, "active", null)
+                            .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                            .eq("status", 1).update();
+                    // 1.3.归还库存 set stock = stock + n where voucher_id = ?
+                    seckillVoucherService.update()
+                            .setSql("stock = stock + " + unpaid.size())
+                            .eq("voucher_id", voucherId)
+                            .update();
+                    return unpaid;
+                });
+            } catch (Exception e) {
+                // 任务留在有序集合中，租约到期后重新认领
+                log.error("取消超时订单失败，voucherId={}，orderIds={}", voucherId, ids, e);
+                continue;
+            }
+            done.addAll(entry.getValue());
+            if (cancelled == null || cancelled.isEmpty()) {
+                continue;
+            }
+            try {
+                restoreRedisStock(voucherId, cancelled);
+            } catch (Exception e) {
+                log.error("归还Redis库存失败，voucherId={}，数量={}", voucherId, cancelled.size(), e);
+            }
+            orderStatusTracker.markCancelled(cancelled.stream().map(VoucherOrder::getId).collect(Collectors.toList()), "超时未支付");
+            log.info("取消超时订单，voucherId={}，数量={}", voucherId, cancelled.size());
+        }
+        orderTimeoutQueue.complete(done);
+    }
+
+    /**
+     * 将取消订单的用户移出Redis订单集合并归还库存，分桶时按用户所属的桶分别执行，各个桶的脚本在一个管道中执行
+     */
+    private void restoreRedisStock(Long voucherId, List<VoucherOrder> cancelled) {
+        int shards = seckillStockShards.shardsOf(voucherId);
+        Map<Integer, List<String>> byBucket = new HashMap<>();
+        for (VoucherOrder order : cancelled) {
+            int bucket = shards > 1 ? SeckillStockShards.homeBucket(order.getUserId(), shards) : 0;
+            byBucket.computeIfAbsent(bucket, k -> new ArrayList<>()).add(order.getUserId().toString());
+        }
+        List<List<String>> keys = new ArrayList<>(byBucket.size());
+        List<Object[]> args = new ArrayList<>(byBucket.size());
+        for (Map.Entry<Integer, List<String>> entry : byBucket.entrySet()) {
+            int bucket = entry.getKey();
+            keys.add(shards > 1
+                    ? Arrays.asList(SeckillStockShards.stockKey(voucherId, bucket), SeckillStockShards.orderKey(voucherId, bucket))
+                    : Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId));
+            args.add(entry.getValue().toArray());
+        }
+        long restored = 0;
+        for (Long result : redisScriptRegistry.executeBatch("seckill_restore", Long.class, keys, args)) {
+            restored += result == null ? 0 : result;
+        }
+        if (shards > 1) {
+            byBucket.keySet().forEach(bucket -> seckillStockShards.markRefilled(voucherId, bucket));
+        }
+        if (restored > 0) {
+            // 库存被补回，清除各节点的售罄标记
+            soldOutCache.clear(voucherId);
+        }
+    }
+
+    /**
+     * 解析组合订单消息：bundle = 优惠券ID:订单ID,优惠券ID:订单ID,...
+     */
+    private static List<VoucherOrder> parseBundle(MapRecord<String, Object, Object> record) {
+        Long userId = Long.valueOf(record.getValue().get("userId").toString());
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (String item : record.getValue().get("bundle").toString().split(",")) {
+            String[] parts = item.split(":");
+            VoucherOrder order = new VoucherOrder();
+            order.setVoucherId(Long.valueOf(parts[0]));
+            order.setId(Long.valueOf(parts[1]));
+            order.setUserId(userId);
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    /**
+     * 在一个事务中创建组合订单，任意一张优惠券重复下单或库存不足时整体回滚
+     * @param orders 同一用户的多张优惠券订单
+     */
+    private void createBundleOrders(List<VoucherOrder> orders) {
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        // 同一条消息被重复投递时，订单已经全部落库
+        if (query().in("id", ids).count() == ids.size()) {
+            orderStatusTracker.markPersisted(ids);
+            return;
+        }
+        Long userId = orders.get(0).getUserId();
+        List<Long> voucherIds = orders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toList());
+        String reason;
+        try {
+            reason = transactionTemplate.execute(status -> {
+                // 1.任意一张已经下过单（未取消）则整单失败
+                if (query().eq("user_id", userId).in("voucher_id", voucherIds).ne("status", 4).count() > 0) {
+                    return "不允许重复下单";
+                }
+                // 2.逐张扣减库存，任意一张不足时回滚
+                for (VoucherOrder order : orders) {
+                    boolean success = seckillVoucherService.update()
+                            .setSql("stock = stock - 1")
+                            .eq("voucher_id", order.getVoucherId()).gt("stock", 0)
+                            .update();
+                    if (!success) {
+                        status.setRollbackOnly();
+                        return "库存不足";
+                    }
+                }
+                // 3.创建订单，已取消的订单保留原记录
+                for (VoucherOrder order : orders) {
+                    save(order);
+                }
+                return null;
+            });
+        } catch (DuplicateKeyException e) {
+            reason = "不允许重复下单";
+        }
+        if (reason != null) {
+            log.error("组合订单{}！userId={}，voucherIds={}", reason, userId, voucherIds);
+            orderStatusTracker.markFailed(ids, reason);
+            return;
+        }
+        onOrdersPersisted(orders);
+    }
 }
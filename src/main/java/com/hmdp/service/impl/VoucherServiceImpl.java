@@ -8,15 +8,15 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -24,15 +24,13 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  *
  * @author jialin.zhou
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
-
     /**
      * 查询指定店铺的优惠券信息
      *
@@ -67,7 +65,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime()); // 设置秒杀结束时间
         seckillVoucherService.save(seckillVoucher); // 保存秒杀优惠券信息
 
-        // 保存秒杀库存至redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 事务提交后再预热秒杀券：保存秒杀库存和时间窗口至redis，并清除所有节点上的售罄标记；
+        // 回滚时不会在Redis中留下不存在的秒杀券，预热失败时由定时预热补上
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    seckillVoucherService.preheat(seckillVoucher);
+                } catch (Exception e) {
+                    log.error("预热秒杀券失败，等待定时预热，voucherId={}", seckillVoucher.getVoucherId(), e);
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+@Slf4j
+public class AdminInterceptor implements HandlerInterceptor {
+
+    /**
+     * 管理员的用户ID
+     */
+    private final Set<Long> adminUserIds;
+
+    public AdminInterceptor(Set<Long> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+    }
+
+    /**
+     * 在请求处理之前进行拦截。/admin/** 下的运维接口（死信队列、库存对账、缓存预热、热点key）只允许管理员访问。
+     *
+     * @param request  HttpServletRequest对象，代表客户端的请求
+     * @param response HttpServletResponse对象，用于向客户端发送响应
+     * @param handler  将要处理请求的处理器对象
+     * @return 如果是管理员，返回true，请求继续处理；否则返回false，未登录时响应401，已登录但不是管理员时响应403
+     */
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        if (!adminUserIds.contains(user.getId())) {
+            log.warn("非管理员用户{}访问运维接口：{}", user.getId(), request.getRequestURI());
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,390 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编解码器，按类的字段结构（schema）编码，不写字段名：
+ * 魔数(1) | [逻辑过期时间：秒(varlong) 纳秒(varint)] | schema哈希(4) | 空值位图 | 各个非空字段的值。
+ * 字段按名称排序，整数使用zigzag变长编码，字符串为长度(varint)+UTF-8字节。
+ * schema哈希由字段名和类型计算，类的字段变化后旧数据解码失败，由调用方当作缓存未命中处理。
+ * 只支持由基本类型、包装类型、String、BigDecimal、LocalDateTime字段组成的实体类。
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final String VERSION = "bin1";
+
+    private static final byte MAGIC = (byte) 0xB1;
+
+    private static final byte MAGIC_LOGICAL = (byte) 0xB2;
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public String version() {
+        return VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        out.writeByte(MAGIC);
+        writeBean(out, value);
+        return out.toBytes();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Input in = new Input(bytes);
+        checkMagic(in.readByte(), MAGIC);
+        return readBean(in, type);
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        Output out = new Output();
+        out.writeByte(MAGIC_LOGICAL);
+        writeDateTime(out, redisData.getExpireTime());
+        writeBean(out, redisData.getData());
+        return out.toBytes();
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes, Class<?> type) {
+        Input in = new Input(bytes);
+        checkMagic(in.readByte(), MAGIC_LOGICAL);
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(readDateTime(in));
+        redisData.setData(readBean(in, type));
+        return redisData;
+    }
+
+    private static void checkMagic(byte actual, byte expected) {
+        if (actual != expected) {
+            throw new IllegalArgumentException("不是" + VERSION + "格式的缓存数据");
+        }
+    }
+
+    private void writeBean(Output out, Object bean) {
+        // 缓存重建时数据库中可能已经没有该数据，null用哈希0表示
+        if (bean == null) {
+            out.writeInt(0);
+            return;
+        }
+        Schema schema = schema(bean.getClass());
+        out.writeInt(schema.hash);
+        try {
+            byte[] nulls = new byte[(schema.fields.length + 7) / 8];
+            Object[] values = new Object[schema.fields.length];
+            for (int i = 0; i < schema.fields.length; i++) {
+                values[i] = schema.fields[i].get(bean);
+                if (values[i] == null) {
+                    nulls[i >>> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+            out.writeBytes(nulls);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    writeValue(out, schema.types[i], values[i]);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T> T readBean(Input in, Class<T> type) {
+        int hash = in.readInt();
+        if (hash == 0) {
+            return null;
+        }
+        Schema schema = schema(type);
+        if (hash != schema.hash) {
+            throw new IllegalArgumentException("缓存数据的结构与" + type.getName() + "不一致");
+        }
+        try {
+            T bean = type.cast(schema.constructor.newInstance());
+            byte[] nulls = in.readBytes((schema.fields.length + 7) / 8);
+            for (int i = 0; i < schema.fields.length; i++) {
+                if ((nulls[i >>> 3] & (1 << (i & 7))) == 0) {
+                    schema.fields[i].set(bean, readValue(in, schema.types[i]));
+                }
+            }
+            return bean;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeValue(Output out, FieldType type, Object value) {
+        switch (type) {
+            case LONG:
+                out.writeVarLong(((Long) value));
+                break;
+            case INT:
+                out.writeVarLong(((Integer) value));
+                break;
+            case SHORT:
+                out.writeVarLong(((Short) value));
+                break;
+            case BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case BOOLEAN:
+                out.writeByte((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToLongBits((Double) value));
+                break;
+            case FLOAT:
+                out.writeInt(Float.floatToIntBits((Float) value));
+                break;
+            case STRING:
+                out.writeString((String) value);
+                break;
+            case BIG_DECIMAL:
+                out.writeString(value.toString());
+                break;
+            case LOCAL_DATE_TIME:
+                writeDateTime(out, (LocalDateTime) value);
+                break;
+            default:
+                throw new IllegalArgumentException(type.name());
+        }
+    }
+
+    private static Object readValue(Input in, FieldType type) {
+        switch (type) {
+            case LONG:
+                return in.readVarLong();
+            case INT:
+                return (int) in.readVarLong();
+            case SHORT:
+                return (short) in.readVarLong();
+            case BYTE:
+                return in.readByte();
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case STRING:
+                return in.readString();
+            case BIG_DECIMAL:
+                return new BigDecimal(in.readString());
+            case LOCAL_DATE_TIME:
+                return readDateTime(in);
+            default:
+                throw new IllegalArgumentException(type.name());
+        }
+    }
+
+    private static void writeDateTime(Output out, LocalDateTime time) {
+        out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeVarLong(time.getNano());
+    }
+
+    private static LocalDateTime readDateTime(Input in) {
+        long seconds = in.readVarLong();
+        return LocalDateTime.ofEpochSecond(seconds, (int) in.readVarLong(), ZoneOffset.UTC);
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private enum FieldType {
+        LONG, INT, SHORT, BYTE, BOOLEAN, DOUBLE, FLOAT, STRING, BIG_DECIMAL, LOCAL_DATE_TIME;
+
+        static FieldType of(Class<?> type) {
+            if (type == Long.class || type == long.class) {
+                return LONG;
+            }
+            if (type == Integer.class || type == int.class) {
+                return INT;
+            }
+            if (type == Short.class || type == short.class) {
+                return SHORT;
+            }
+            if (type == Byte.class || type == byte.class) {
+                return BYTE;
+            }
+            if (type == Boolean.class || type == boolean.class) {
+                return BOOLEAN;
+            }
+            if (type == Double.class || type == double.class) {
+                return DOUBLE;
+            }
+            if (type == Float.class || type == float.class) {
+                return FLOAT;
+            }
+            if (type == String.class) {
+                return STRING;
+            }
+            if (type == BigDecimal.class) {
+                return BIG_DECIMAL;
+            }
+            if (type == LocalDateTime.class) {
+                return LOCAL_DATE_TIME;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 类的字段结构，包括父类的字段，不包括静态和transient字段
+     */
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final FieldType[] types;
+        private final int hash;
+
+        Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                        list.add(field);
+                    }
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            fields = list.toArray(new Field[0]);
+            types = new FieldType[fields.length];
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = FieldType.of(fields[i].getType());
+                if (types[i] == null) {
+                    throw new IllegalArgumentException(VERSION + "编码不支持字段" + type.getName() + "." + fields[i].getName());
+                }
+                fields[i].setAccessible(true);
+                signature.append(';').append(fields[i].getName()).append(':').append(types[i]);
+            }
+            // 0表示null，不作为schema哈希
+            int h = signature.toString().hashCode();
+            hash = h == 0 ? 1 : h;
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(VERSION + "编码需要无参构造方法：" + type.getName(), e);
+            }
+        }
+    }
+
+    private static class Output {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buf[pos++] = (byte) (v >>> 24);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        /**
+         * zigzag变长编码，绝对值小的数只占1到2个字节
+         */
+        void writeVarLong(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        byte[] readBytes(int n) {
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return bytes;
+        }
+
+        int readInt() {
+            return ((buf[pos++] & 0xFF) << 24) | ((buf[pos++] & 0xFF) << 16) | ((buf[pos++] & 0xFF) << 8) | (buf[pos++] & 0xFF);
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -1,29 +1,178 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.hmdp.entity.Shop;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
-import javax.management.RuntimeMBeanException;
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * 缓存工具类。逻辑过期的缓存使用两级缓存：
+ * 1.一级缓存为进程内的Caffeine缓存（W-TinyLFU淘汰），保存反序列化后的对象，容量和有效期独立于Redis，热点数据直接在本地命中；
+ * 2.二级缓存为Redis，一级缓存未命中时读取Redis并回填一级缓存；
+ * 3.调用delete删除缓存时，通过Redis发布订阅通知所有节点删除一级缓存，节点错过通知时一级缓存的有效期兜底。
+ * 缓存未命中需要查询数据库时合并回源：同一个key在本节点同时只有一个请求查询数据库，其他请求等待它的结果；
+ * 开启跨节点合并后，各节点用Redis租约 lock:flight:{key} 选出一个节点查询数据库，其他节点订阅加载完成的通知后重新读取缓存，
+ * 一个key过期后整个集群只查询一次数据库。
+ * 一级缓存中的对象被所有请求共享，调用方不能修改返回的对象。
+ * 逻辑过期的数据按XFetch提前重建：每次读取以 exp(-剩余时间/(重建耗时*beta)) 的概率提前重建，越接近过期、重建越慢概率越大，
+ * 热点数据在过期前就已被重建，重建也分散在过期前的一段时间内；重建使用租约 lock:rebuild:{key}，同一个key同时只有一个重建任务。
+ * 逻辑过期的数据在Redis中不存在时（未预热、被delete删除或Redis数据丢失）同步查询数据库并写回，
+ * 因此所有CacheClient管理的缓存都可以在更新数据库后直接delete。
+ * Redis中的值由可插拔的编解码器CacheCodec编码，通过 hmdp.cache.codec 选择；不同编解码器写入带版本号的不同key，
+ * 读取当前版本未命中时再读取其他版本，写入和删除时同时删除其他版本，切换编解码器时可以平滑迁移。
+ * 热点key（见HotKeyDetector）在租约内从本地副本读取Redis中的原始数据，每次读取重新解码，不访问Redis；
+ * 本地副本与一级缓存一起失效，未经delete的修改最多在一个租约内读到旧数据。
+ * 列表查询使用queryBatch*方法：一次MGET读取所有key，未命中的ID一次批量查询数据库，再用一个管道写回，整页数据两次往返。
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
     private StringRedisTemplate stringRedisTemplate;
 
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final RedisScriptRegistry redisScriptRegistry;
+
+    private final MeterRegistry meterRegistry;
+
+    private final List<CacheCodec> codecs;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    /**
+     * 热点key本地副本的最大条数
+     */
+    @Value("${hmdp.hotkey.replica-max-size:1000}")
+    private long replicaMaxSize;
+
+    /**
+     * 热点key的本地副本：key -> Redis中的原始数据，有效期为热点租约
+     */
+    private Cache<String, Encoded> hotReplica;
+
+    /**
+     * 写入Redis时使用的编解码器版本：json 与原有格式兼容；bin1 紧凑的二进制格式
+     */
+    @Value("${hmdp.cache.codec:json}")
+    private String codecVersion;
+
+    private CacheCodec codec;
+
+    /**
+     * 是否开启一级缓存
+     */
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+
+    /**
+     * 一级缓存的最大条数
+     */
+    @Value("${hmdp.cache.local.max-size:10000}")
+    private long localMaxSize;
+
+    /**
+     * 一级缓存写入后的有效期（毫秒）
+     */
+    @Value("${hmdp.cache.local.expire-ms:5000}")
+    private long localExpireMs;
+
+    /**
+     * 一级缓存：key -> 反序列化后的数据和逻辑过期时间
+     */
+    private Cache<String, LocalEntry> localCache;
+
+    /**
+     * 收到的失效通知的序号，读取Redis前后序号不变时才回填一级缓存，避免把失效前读到的旧数据写回一级缓存
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * 最近失效的key -> 失效时的序号，批量写入（例如预热）时跳过读取数据之后失效的key，避免用旧数据覆盖失效
+     */
+    private final Cache<String, Long> recentInvalidations = Caffeine.newBuilder()
+            .maximumSize(100000)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * 是否跨节点合并回源
+     */
+    @Value("${hmdp.cache.single-flight.distributed:false}")
+    private boolean distributedFlight;
+
+    /**
+     * 等待其他请求回源的最长时间（毫秒），也是跨节点回源租约的时长，超时后自己查询数据库
+     */
+    @Value("${hmdp.cache.single-flight.wait-ms:3000}")
+    private long flightWaitMs;
+
+    /**
+     * 本节点正在回源的key -> 回源结果
+     */
+    private final Map<String, CompletableFuture<Object>> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * 等待其他节点回源的key -> 加载完成通知
+     */
+    private final Map<String, CompletableFuture<Void>> remoteFlights = new ConcurrentHashMap<>();
+
+    /**
+     * 是否在逻辑过期前按XFetch概率提前重建
+     */
+    @Value("${hmdp.cache.early-refresh.enabled:true}")
+    private boolean earlyRefresh;
+
+    /**
+     * XFetch的beta，越大越早重建
+     */
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double refreshBeta;
+
+    /**
+     * 本节点尚未观测到某类缓存的重建耗时时使用的估计值（毫秒）
+     */
+    @Value("${hmdp.cache.early-refresh.default-cost-ms:100}")
+    private long defaultRebuildCostMs;
+
+    /**
+     * 各个key前缀观测到的重建耗时（毫秒，指数加权平均）
+     */
+    private final Map<String, Double> rebuildCostMs = new ConcurrentHashMap<>();
+
     /**
      * 定义一个固定大小的线程池，用于缓存重建任务的执行。
      * 线程池的最大线程数为10。
@@ -31,8 +180,231 @@ public class CacheClient {
      */
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                       RedisScriptRegistry redisScriptRegistry, MeterRegistry meterRegistry, List<CacheCodec> codecs,
+                       HotKeyDetector hotKeyDetector){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.meterRegistry = meterRegistry;
+        this.codecs = codecs;
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    @PostConstruct
+    private void init() {
+        codec = codecs.stream().filter(c -> c.version().equals(codecVersion)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编解码器：" + codecVersion));
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .expireAfterWrite(localExpireMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, localCache, "cache.local");
+        hotReplica = Caffeine.newBuilder()
+                .maximumSize(replicaMaxSize)
+                .expireAfterWrite(hotKeyDetector.getLeaseMs(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, hotReplica, "cache.hotkey.replica");
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_LOADED_CHANNEL));
+    }
+
+    /**
+     * 删除缓存，同时删除本节点的一级缓存并通知其他节点删除
+     * @param key 缓存的键
+     */
+    public void delete(String key) {
+        List<String> keys = new ArrayList<>(codecs.size());
+        codecs.forEach(c -> keys.add(versionedKey(key, c)));
+        stringRedisTemplate.delete(keys);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 收到其他节点的失效通知时删除一级缓存，收到加载完成通知时唤醒等待该key的请求
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (CACHE_LOADED_CHANNEL.equals(new String(message.getChannel(), StandardCharsets.UTF_8))) {
+            CompletableFuture<Void> loaded = remoteFlights.get(key);
+            if (loaded != null) {
+                loaded.complete(null);
+            }
+            return;
+        }
+        evictLocal(key);
+    }
+
+    private void evictLocal(String key) {
+        recentInvalidations.put(key, invalidations.incrementAndGet());
+        localCache.invalidate(key);
+        hotReplica.invalidate(key);
+    }
+
+    /**
+     * 编解码器对应的key：json使用原始key，其他编解码器追加 "@版本号"
+     */
+    private static String versionedKey(String key, CacheCodec codec) {
+        return JsonCacheCodec.VERSION.equals(codec.version()) ? key : key + "@" + codec.version();
+    }
+
+    /**
+     * 读取缓存，先读当前编解码器的key，未命中时依次读取其他编解码器的key
+     * @return 缓存值，不存在时返回null
+     */
+    private Encoded read(String key) {
+        boolean hot = hotKeyDetector.isHot(versionedKey(key, codec));
+        if (hot) {
+            Encoded replica = readReplica(key);
+            if (replica != null) {
+                return replica;
+            }
+        }
+        long seq = invalidations.get();
+        Encoded encoded = readRemote(key);
+        if (hot) {
+            putReplica(key, encoded, seq);
+        }
+        return encoded;
+    }
+
+    /**
+     * 从Redis读取缓存，不经过本地副本
+     */
+    private Encoded readRemote(String key) {
+        byte[] bytes = get(versionedKey(key, codec));
+        if (bytes != null) {
+            return new Encoded(bytes, codec);
+        }
+        for (CacheCodec c : codecs) {
+            if (c != codec && (bytes = get(versionedKey(key, c))) != null) {
+                return new Encoded(bytes, c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读取热点key的本地副本，命中时仍然计入读取次数，使持续被读取的热点key不断续约
+     */
+    private Encoded readReplica(String key) {
+        Encoded replica = hotReplica.getIfPresent(key);
+        if (replica != null) {
+            hotKeyDetector.record(versionedKey(key, codec));
+        }
+        return replica;
+    }
+
+    /**
+     * 回填热点key的本地副本，读取Redis前后收到过失效通知时不回填
+     */
+    private void putReplica(String key, Encoded encoded, long seq) {
+        if (encoded != null && invalidations.get() == seq) {
+            hotReplica.put(key, encoded);
+        }
+    }
+
+    private byte[] get(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    /**
+     * 用当前编解码器的key写入缓存，并在同一个管道中删除其他编解码器的旧数据
+     * @param expiration 过期时间，null表示不过期
+     */
+    private void write(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            write(connection, key, value, expiration);
+            return null;
+        });
+    }
+
+    /**
+     * 批量读取缓存，一次MGET读取所有编解码器版本的key，每个key优先使用当前编解码器的数据
+     * @return 与keys顺序一致的缓存值，不存在的位置为null
+     */
+    private List<Encoded> readAll(List<String> keys) {
+        // 热点key先读本地副本，其余的key一次MGET
+        List<Encoded> result = new ArrayList<>(keys.size());
+        List<String> remoteKeys = new ArrayList<>(keys.size());
+        List<Integer> remoteIndexes = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            Encoded replica = hotKeyDetector.isHot(versionedKey(key, codec)) ? readReplica(key) : null;
+            result.add(replica);
+            if (replica == null) {
+                remoteKeys.add(key);
+                remoteIndexes.add(i);
+            }
+        }
+        if (remoteKeys.isEmpty()) {
+            return result;
+        }
+        long seq = invalidations.get();
+        List<Encoded> remote = mGet(remoteKeys);
+        for (int i = 0; i < remoteKeys.size(); i++) {
+            String key = remoteKeys.get(i);
+            result.set(remoteIndexes.get(i), remote.get(i));
+            if (hotKeyDetector.isHot(versionedKey(key, codec))) {
+                putReplica(key, remote.get(i), seq);
+            }
+        }
+        return result;
+    }
+
+    private List<Encoded> mGet(List<String> keys) {
+        List<CacheCodec> order = new ArrayList<>(codecs.size());
+        order.add(codec);
+        codecs.stream().filter(c -> c != codec).forEach(order::add);
+        byte[][] rawKeys = new byte[keys.size() * order.size()][];
+        for (int v = 0; v < order.size(); v++) {
+            for (int i = 0; i < keys.size(); i++) {
+                rawKeys[v * keys.size() + i] = versionedKey(keys.get(i), order.get(v)).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        List<Encoded> result = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Encoded encoded = null;
+            for (int v = 0; v < order.size() && encoded == null; v++) {
+                byte[] bytes = values == null ? null : values.get(v * keys.size() + i);
+                if (bytes != null) {
+                    encoded = new Encoded(bytes, order.get(v));
+                }
+            }
+            result.add(encoded);
+        }
+        return result;
+    }
+
+    /**
+     * 在一个管道中批量写入缓存，空字节数组（空值）使用nullExpiration
+     * @param expiration 过期时间，null表示不过期
+     */
+    private void writeAll(Map<String, byte[]> values, Expiration expiration, Expiration nullExpiration) {
+        if (values.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> write(connection, key, value, value.length == 0 ? nullExpiration : expiration));
+            return null;
+        });
+    }
+
+    private void write(RedisConnection connection, String key, byte[] value, Expiration expiration) {
+        hotReplica.invalidate(key);
+        connection.set(versionedKey(key, codec).getBytes(StandardCharsets.UTF_8), value,
+                expiration == null ? Expiration.persistent() : expiration, RedisStringCommands.SetOption.upsert());
+        for (CacheCodec c : codecs) {
+            if (c != codec) {
+                connection.del(versionedKey(key, c).getBytes(StandardCharsets.UTF_8));
+            }
+        }
     }
     /**
      * 将给定的键值对存储到Redis中，并设定过期时间。
@@ -43,8 +415,8 @@ public class CacheClient {
      * @param unit 时间单位，指定key的value的过期时间。
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        // 使用stringRedisTemplate将value以JSON格式存储到Redis中，同时设置过期时间
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        // 使用当前编解码器编码后存储到Redis中，同时设置过期时间
+        write(key, codec.encode(value), Expiration.from(time, unit));
     }
 
 
@@ -60,8 +432,58 @@ public class CacheClient {
         RedisData redisData = new RedisData();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        // 将RedisData对象序列化后，设置到Redis中
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        // 将RedisData对象编码后，设置到Redis中
+        write(key, codec.encodeLogical(redisData), null);
+    }
+
+    /**
+     * 批量设置带逻辑过期时间的缓存，在一个管道中写入，用于预热等批量写入的场景
+     * @param values 键 -> 值，值为null时与setWithLogicalExpire相同写入data为null的数据
+     * @param time 过期时间
+     * @param unit 时间单位
+     */
+    public void setAllWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit) {
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+        Map<String, byte[]> encoded = new LinkedHashMap<>(values.size() * 2);
+        values.forEach((key, value) -> {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(expireTime);
+            encoded.put(key, codec.encodeLogical(redisData));
+        });
+        writeAll(encoded, null, null);
+    }
+
+    /**
+     * @return 当前的失效序号，读取数据库之前获取，写入缓存时传给setAllWithLogicalExpire
+     */
+    public long invalidationSeq() {
+        return invalidations.get();
+    }
+
+    /**
+     * 与setAllWithLogicalExpire相同，但跳过序号readSeq之后失效的key：这些key的数据在读取之后被修改过，写入会覆盖失效。
+     * 写入期间才收到失效通知的key在写入后再删除一次，下次读取时重新加载
+     * @param readSeq 读取数据之前的invalidationSeq()
+     */
+    public void setAllWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit, long readSeq) {
+        Map<String, Object> fresh = new LinkedHashMap<>(values);
+        fresh.keySet().removeIf(key -> invalidatedSince(key, readSeq));
+        setAllWithLogicalExpire(fresh, time, unit);
+        List<String> late = new ArrayList<>();
+        for (String key : fresh.keySet()) {
+            if (invalidatedSince(key, readSeq)) {
+                codecs.forEach(c -> late.add(versionedKey(key, c)));
+            }
+        }
+        if (!late.isEmpty()) {
+            stringRedisTemplate.delete(late);
+        }
+    }
+
+    private boolean invalidatedSince(String key, long seq) {
+        Long invalidatedAt = recentInvalidations.getIfPresent(key);
+        return invalidatedAt != null && invalidatedAt > seq;
     }
 
 
@@ -81,27 +503,50 @@ public class CacheClient {
      * 使用缓存空值的方式解决缓存击穿问题
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        return queryWithPassThrough(keyPrefix, id, type, null, dbFallback, time, unit);
+    }
+
+    /**
+     * 与queryWithPassThrough相同，缓存未命中时先用mightExist（例如布隆过滤器）判断，一定不存在的ID不查询数据库，也不缓存空值
+     *
+     * @param mightExist 判断ID是否可能存在，返回false表示一定不存在，为null时不判断
+     */
+    public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Predicate<ID> mightExist,
+                                          Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
         // 从Redis中根据键获取值
-        String json = stringRedisTemplate.opsForValue().get(key);
+        Encoded cached = read(key);
 
-        // 如果Redis中存在该键，则直接返回反序列化后的对象
-        if (StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+        // 如果Redis中存在该键，则直接返回解码后的对象，空值直接返回null；无法解码的旧数据当作未命中
+        if (cached != null){
+            try {
+                return cached.bytes.length == 0 ? null : cached.codec.decode(cached.bytes, type);
+            } catch (RuntimeException e) {
+                log.warn("缓存数据解码失败，重新查询，key={}，codec={}", key, cached.codec.version(), e);
+            }
         }
 
-        // 判断Redis中返回的是否是空值
-        if (json != null){
-            // Redis中存在空值时，直接返回null
+        // 一定不存在的ID直接返回，避免随机ID每次都查询数据库并写入空值
+        if (mightExist != null && !mightExist.test(id)) {
             return null;
         }
 
+        // 合并回源，同一个key同时只有一个请求查询数据库
+        return singleFlight(key, () -> distributedFlight
+                ? loadAcrossNodes(key, type, () -> loadAndCache(key, id, dbFallback, time, unit))
+                : loadAndCache(key, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 从数据库中查询数据并写入缓存
+     */
+    private <R, ID> R loadAndCache(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         // 从数据库中查询数据
         R r = dbFallback.apply(id);
 
         // 如果数据库中未查询到数据，则在Redis中设置一个空值的缓存，并返回null
         if (r == null) {
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, unit);
+            write(key, new byte[0], Expiration.from(CACHE_NULL_TTL, unit));
             return null;
         }
 
@@ -112,9 +557,83 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 本节点内合并回源：第一个请求执行loader，同一个key的其他请求等待它的结果，等待超时后自己执行loader
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inflight.putIfAbsent(key, flight);
+        if (existing != null) {
+            // 跨节点合并时第一个请求可能先等待其他节点一个租约时长再自己查询，这里多等一个租约时长
+            long waitMs = distributedFlight ? flightWaitMs * 2 : flightWaitMs;
+            try {
+                return (R) existing.get(waitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待回源结果时被中断", e);
+            } catch (ExecutionException e) {
+                // 回源失败时所有等待的请求都收到同一个异常
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+            } catch (TimeoutException e) {
+                log.warn("等待回源超时，自行查询，key={}", key);
+                return loader.get();
+            }
+        }
+        try {
+            R r = loader.get();
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(key, flight);
+        }
+    }
 
     /**
-     * 通过逻辑过期时间查询数据，如果数据存在且未过期，则直接返回数据；如果数据已过期，则尝试重建缓存。
+     * 跨节点合并回源：获得租约的节点执行loader，完成后发布通知；其他节点等待通知后重新读取缓存，
+     * 等待超时或者缓存仍未写入（回源失败）时自己执行loader
+     */
+    private <R> R loadAcrossNodes(String key, Class<R> type, Supplier<R> loader) {
+        String leaseKey = LOCK_FLIGHT_KEY + key;
+        String token = UUID.randomUUID().toString(true);
+        Boolean acquired = stringRedisTemplate.opsForValue().setIfAbsent(leaseKey, token, flightWaitMs, TimeUnit.MILLISECONDS);
+        if (BooleanUtil.isTrue(acquired)) {
+            try {
+                return loader.get();
+            } finally {
+                redisScriptRegistry.execute("unlock", Long.class, Collections.singletonList(leaseKey), token);
+                stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+            }
+        }
+        // 先登记等待再检查一次缓存，避免在两步之间错过加载完成的通知
+        CompletableFuture<Void> loaded = remoteFlights.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            Encoded cached = read(key);
+            if (cached == null) {
+                loaded.get(flightWaitMs, TimeUnit.MILLISECONDS);
+                cached = read(key);
+            }
+            if (cached != null) {
+                return cached.bytes.length == 0 ? null : cached.codec.decode(cached.bytes, type);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待其他节点回源时被中断", e);
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("等待其他节点回源超时，自行查询，key={}", key);
+        } finally {
+            remoteFlights.remove(key, loaded);
+        }
+        return loader.get();
+    }
+
+
+    /**
+     * 通过逻辑过期时间查询数据，如果数据存在且未过期，则直接返回数据；如果数据已过期，则尝试重建缓存；如果数据不存在，则同步查询数据库并写入缓存。
      *
      * @param keyPrefix 键前缀
      * @param id 数据唯一标识
@@ -124,75 +643,432 @@ public class CacheClient {
      * @param unit 时间单位
      * @return 查询到的数据，如果缓存不存在或已过期，则返回通过dbFallback从数据库获取的数据
      *
-     * 设置逻辑过期时间解决缓存击穿问题
+     * 设置逻辑过期时间解决缓存击穿问题，未过期的数据同时缓存在一级缓存中
      */
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        return queryWithLogicalExpire(keyPrefix, id, type, null, dbFallback, time, unit);
+    }
+
+    /**
+     * 与queryWithLogicalExpire相同，先用mightExist（例如布隆过滤器）判断，一定不存在的ID不访问缓存
+     *
+     * @param mightExist 判断ID是否可能存在，返回false表示一定不存在，为null时不判断
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Predicate<ID> mightExist,
+                                            Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        if (mightExist != null && !mightExist.test(id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 先查一级缓存，需要重建的数据交给下面的流程，重新读取Redis后再判断，其他节点可能已经重建
+        LocalEntry local = localEnabled ? localCache.getIfPresent(key) : null;
+        if (local != null && !shouldRebuild(keyPrefix, local.expireTime, LocalDateTime.now())) {
+            return (R) local.data;
+        }
+        long seq = invalidations.get();
         // 从Redis查询数据
-        String json = stringRedisTemplate.opsForValue().get(key);
+        Encoded cached = read(key);
 
-        // 判断缓存是否存在
-        if (StrUtil.isBlank(json)){
-            // 缓存不存在，直接返回null
+        // 缓存不存在时合并回源，查询数据库并写入逻辑过期的缓存，数据库中不存在时写入data为null的数据
+        if (cached == null){
+            return singleFlight(key, () -> loadLogical(key, id, dbFallback, time, unit));
+        }
+        if (cached.bytes.length == 0){
             return null;
         }
 
-        // 反序列化缓存数据
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 判断缓存是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
-            // 缓存未过期，直接返回缓存数据
+        // 解码缓存数据，一次得到目标类型的数据；无法解码的旧数据按已过期处理，触发重建
+        R r = null;
+        LocalDateTime expireTime = LocalDateTime.MIN;
+        try {
+            RedisData redisData = cached.codec.decodeLogical(cached.bytes, type);
+            r = (R) redisData.getData();
+            expireTime = redisData.getExpireTime();
+        } catch (RuntimeException e) {
+            log.warn("缓存数据解码失败，重建缓存，key={}，codec={}", key, cached.codec.version(), e);
+        }
+        // 缓存未过期时回填一级缓存
+        LocalDateTime now = LocalDateTime.now();
+        if (expireTime.isAfter(now) && localEnabled && invalidations.get() == seq) {
+            localCache.put(key, new LocalEntry(r, expireTime));
+        }
+        // 判断是否需要重建：已过期，或者按XFetch概率提前重建
+        if (!shouldRebuild(keyPrefix, expireTime, now)) {
             return r;
         }
 
-        // 缓存已过期，需要重建缓存
-        // 尝试获取缓存重建的互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(key);
+        // 尝试获取缓存重建的租约
+        String lockKey = LOCK_REBUILD_KEY + key;
+        String token = tryLock(lockKey);
 
-        if (isLock){
-            // 获取锁成功，开启新线程进行缓存重建
+        if (token != null){
+            // 获取租约成功，开启新线程进行缓存重建
+            LocalDateTime observed = expireTime;
             CACHE_REBUILD_EXECUTOR.submit(() -> {
+                long begin = System.nanoTime();
                 try {
+                    // 其他请求在我们读取之后、获取租约之前已经重建完成时不再重建
+                    if (rebuiltSince(key, type, observed)) {
+                        return;
+                    }
                     // 从数据库中查询最新数据
                     R r1 = dbFallback.apply(id);
                     // 将最新数据写入Redis缓存
                     this.setWithLogicalExpire(key, r1, time, unit);
-                } catch (Exception e){
-                    throw new RuntimeMBeanException((RuntimeException) e);
-                }finally {
-                    // 重建缓存完成后释放锁
-                    unLock(lockKey);
+                    localCache.invalidate(key);
+                    recordRebuild(keyPrefix, begin, observed);
+                } catch (RuntimeException e){
+                    log.error("重建缓存失败，key={}", key, e);
+                } finally {
+                    // 重建缓存完成后释放租约
+                    unLock(lockKey, token);
                 }
             });
         }
-        // 无论是否成功获取锁，都返回原有缓存数据（已过期）
+        // 无论是否成功获取租约，都返回原有缓存数据
+        return r;
+    }
+
+    /**
+     * 从数据库中查询数据并写入逻辑过期的缓存
+     */
+    private <R, ID> R loadLogical(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        R r = dbFallback.apply(id);
+        this.setWithLogicalExpire(key, r, time, unit);
         return r;
     }
 
+    /**
+     * 判断是否需要重建逻辑过期的数据（XFetch）：已过期时一定重建；未过期时，
+     * 剩余时间小于 -重建耗时 * beta * ln(随机数) 时提前重建，剩余时间越短、重建耗时越长，提前重建的概率越大
+     */
+    private boolean shouldRebuild(String keyPrefix, LocalDateTime expireTime, LocalDateTime now) {
+        if (!expireTime.isAfter(now)) {
+            return true;
+        }
+        if (!earlyRefresh) {
+            return false;
+        }
+        long remainingMs = Duration.between(now, expireTime).toMillis();
+        double cost = rebuildCostMs.getOrDefault(keyPrefix, (double) defaultRebuildCostMs);
+        return -cost * refreshBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble()) >= remainingMs;
+    }
+
+    /**
+     * 读取Redis中当前的逻辑过期时间，晚于observed说明其他请求已经重建
+     */
+    private boolean rebuiltSince(String key, Class<?> type, LocalDateTime observed) {
+        Encoded current = readRemote(key);
+        return current != null && current.bytes.length > 0 && rebuiltSince(current, type, observed);
+    }
+
+    private static boolean rebuiltSince(Encoded current, Class<?> type, LocalDateTime observed) {
+        try {
+            return current.codec.decodeLogical(current.bytes, type).getExpireTime().isAfter(observed);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 记录重建耗时，更新该key前缀的指数加权平均耗时
+     * @param observed 重建前的逻辑过期时间，用于区分提前重建和过期后重建
+     */
+    private void recordRebuild(String keyPrefix, long beginNanos, LocalDateTime observed) {
+        long elapsed = System.nanoTime() - beginNanos;
+        rebuildCostMs.merge(keyPrefix, elapsed / 1e6, (old, cost) -> old * 0.8 + cost * 0.2);
+        Timer.builder("cache.rebuild")
+                .tag("prefix", keyPrefix)
+                .tag("early", String.valueOf(observed.isAfter(LocalDateTime.now())))
+                .register(meterRegistry)
+                .record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * 批量查询，与queryWithPassThrough的缓存格式相同：一次MGET读取所有key，未命中的ID一次调用dbFallback查询，
+     * 查询结果和不存在的ID（空值）在一个管道中写回Redis。
+     *
+     * @param ids 数据的唯一标识列表
+     * @param dbFallback 根据ID列表批量查询数据库，例如listByIds，返回结果的顺序不限
+     * @param idGetter 从查询结果中取出ID，用于和ids对应
+     * @return 按ids的顺序排列的数据，不存在的ID不出现在结果中
+     */
+    public <R, ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                     Function<List<ID>, List<R>> dbFallback, Function<R, ID> idGetter,
+                                                     Long time, TimeUnit unit) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>(ids.size());
+        ids.forEach(id -> keys.add(keyPrefix + id));
+        List<Encoded> cached = readAll(keys);
+
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Encoded encoded = cached.get(i);
+            if (encoded == null) {
+                misses.add(ids.get(i));
+                continue;
+            }
+            if (encoded.bytes.length == 0) {
+                // 空值，数据库中不存在
+                continue;
+            }
+            try {
+                found.put(ids.get(i), encoded.codec.decode(encoded.bytes, type));
+            } catch (RuntimeException e) {
+                log.warn("缓存数据解码失败，重新查询，key={}，codec={}", keys.get(i), encoded.codec.version(), e);
+                misses.add(ids.get(i));
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            Map<ID, R> loaded = loadAll(misses, dbFallback, idGetter);
+            Map<String, byte[]> values = new LinkedHashMap<>(misses.size() * 2);
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                values.put(keyPrefix + id, r == null ? new byte[0] : codec.encode(r));
+            }
+            writeAll(values, Expiration.from(time, unit), Expiration.from(CACHE_NULL_TTL, unit));
+            found.putAll(loaded);
+        }
+        return inOrder(ids, found);
+    }
+
+    /**
+     * 批量查询，与queryWithLogicalExpire的缓存格式相同：先查一级缓存，其余的key一次MGET读取；
+     * Redis中不存在的ID一次调用dbFallback查询后在一个管道中写回；逻辑过期的数据直接返回，抢到重建锁的ID在后台一次批量重建。
+     *
+     * @param ids 数据的唯一标识列表
+     * @param dbFallback 根据ID列表批量查询数据库，例如listByIds，返回结果的顺序不限
+     * @param idGetter 从查询结果中取出ID，用于和ids对应
+     * @return 按ids的顺序排列的数据，不存在的ID不出现在结果中；返回的对象可能来自一级缓存，调用方不能修改
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, List<ID> ids, Class<R> type,
+                                                       Function<List<ID>, List<R>> dbFallback, Function<R, ID> idGetter,
+                                                       Long time, TimeUnit unit) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        LocalDateTime now = LocalDateTime.now();
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        // 先查一级缓存，需要重建的数据重新读取Redis后再判断
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            LocalEntry local = localEnabled ? localCache.getIfPresent(keyPrefix + id) : null;
+            if (local != null && !shouldRebuild(keyPrefix, local.expireTime, now)) {
+                found.put(id, (R) local.data);
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return inOrder(ids, found);
+        }
+
+        long seq = invalidations.get();
+        List<String> keys = new ArrayList<>(remoteIds.size());
+        remoteIds.forEach(id -> keys.add(keyPrefix + id));
+        List<Encoded> cached = readAll(keys);
+
+        List<ID> misses = new ArrayList<>();
+        Map<ID, LocalDateTime> expired = new LinkedHashMap<>();
+        Map<String, LocalEntry> fresh = new HashMap<>(remoteIds.size() * 2);
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            Encoded encoded = cached.get(i);
+            if (encoded == null) {
+                misses.add(id);
+                continue;
+            }
+            if (encoded.bytes.length == 0) {
+                continue;
+            }
+            // 无法解码的旧数据按已过期处理，触发重建
+            R r = null;
+            LocalDateTime expireTime = LocalDateTime.MIN;
+            try {
+                RedisData redisData = encoded.codec.decodeLogical(encoded.bytes, type);
+                r = (R) redisData.getData();
+                expireTime = redisData.getExpireTime();
+            } catch (RuntimeException e) {
+                log.warn("缓存数据解码失败，重建缓存，key={}，codec={}", keys.get(i), encoded.codec.version(), e);
+            }
+            if (r != null) {
+                found.put(id, r);
+            }
+            if (expireTime.isAfter(now)) {
+                fresh.put(keys.get(i), new LocalEntry(r, expireTime));
+            }
+            if (shouldRebuild(keyPrefix, expireTime, now)) {
+                expired.put(id, expireTime);
+            }
+        }
+        // 回填一级缓存
+        if (localEnabled && invalidations.get() == seq) {
+            localCache.putAll(fresh);
+        }
+
+        // Redis中不存在的数据同步查询数据库并写入缓存
+        if (!misses.isEmpty()) {
+            Map<ID, R> loaded = loadAll(misses, dbFallback, idGetter);
+            writeLogical(keyPrefix, misses, loaded, time, unit);
+            found.putAll(loaded);
+        }
+
+        // 已过期或需要提前重建的数据，抢到重建租约的ID在后台一次批量重建
+        if (!expired.isEmpty()) {
+            String token = UUID.randomUUID().toString(true);
+            List<String> lockKeys = tryLockAll(keyPrefix, new ArrayList<>(expired.keySet()), token);
+            List<ID> locked = new ArrayList<>(lockKeys.size());
+            expired.keySet().forEach(id -> {
+                if (lockKeys.contains(LOCK_REBUILD_KEY + keyPrefix + id)) {
+                    locked.add(id);
+                }
+            });
+            if (!locked.isEmpty()) {
+                CACHE_REBUILD_EXECUTOR.submit(() -> {
+                    long begin = System.nanoTime();
+                    try {
+                        // 跳过读取之后已经被其他请求重建的ID
+                        List<String> lockedKeys = new ArrayList<>(locked.size());
+                        locked.forEach(id -> lockedKeys.add(keyPrefix + id));
+                        List<Encoded> current = mGet(lockedKeys);
+                        List<ID> stale = new ArrayList<>(locked.size());
+                        for (int i = 0; i < locked.size(); i++) {
+                            Encoded c = current.get(i);
+                            if (c == null || c.bytes.length == 0 || !rebuiltSince(c, type, expired.get(locked.get(i)))) {
+                                stale.add(locked.get(i));
+                            }
+                        }
+                        if (stale.isEmpty()) {
+                            return;
+                        }
+                        writeLogical(keyPrefix, stale, loadAll(stale, dbFallback, idGetter), time, unit);
+                        stale.forEach(id -> localCache.invalidate(keyPrefix + id));
+                        recordRebuild(keyPrefix, begin, expired.get(stale.get(0)));
+                    } catch (RuntimeException e) {
+                        log.error("批量重建缓存失败，keyPrefix={}，ids={}", keyPrefix, locked, e);
+                    } finally {
+                        List<List<String>> unlockKeys = new ArrayList<>(lockKeys.size());
+                        List<Object[]> unlockArgs = new ArrayList<>(lockKeys.size());
+                        lockKeys.forEach(lockKey -> {
+                            unlockKeys.add(Collections.singletonList(lockKey));
+                            unlockArgs.add(new Object[]{token});
+                        });
+                        redisScriptRegistry.executeBatch("unlock", Long.class, unlockKeys, unlockArgs);
+                    }
+                });
+            }
+        }
+        return inOrder(ids, found);
+    }
+
+    /**
+     * 一次调用dbFallback查询ID列表，按ID建立索引
+     */
+    private <R, ID> Map<ID, R> loadAll(List<ID> ids, Function<List<ID>, List<R>> dbFallback, Function<R, ID> idGetter) {
+        List<R> list = dbFallback.apply(ids);
+        Map<ID, R> loaded = new HashMap<>(ids.size() * 2);
+        if (list != null) {
+            list.forEach(r -> loaded.put(idGetter.apply(r), r));
+        }
+        return loaded;
+    }
+
+    /**
+     * 在一个管道中写入带逻辑过期时间的缓存，数据库中不存在的ID与setWithLogicalExpire相同写入data为null的数据
+     */
+    private <R, ID> void writeLogical(String keyPrefix, List<ID> ids, Map<ID, R> loaded, Long time, TimeUnit unit) {
+        Map<String, R> values = new LinkedHashMap<>(ids.size() * 2);
+        for (ID id : ids) {
+            values.put(keyPrefix + id, loaded.get(id));
+        }
+        setAllWithLogicalExpire(values, time, unit);
+    }
+
+    /**
+     * 在一个管道中尝试获取多个ID的重建租约，所有租约使用同一个标识
+     * @return 获取成功的租约key
+     */
+    private <ID> List<String> tryLockAll(String keyPrefix, List<ID> ids, String token) {
+        byte[] value = token.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                connection.set((LOCK_REBUILD_KEY + keyPrefix + id).getBytes(StandardCharsets.UTF_8), value,
+                        Expiration.seconds(LOCK_REBUILD_TTL), RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        List<String> locked = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (Boolean.TRUE.equals(results.get(i))) {
+                locked.add(LOCK_REBUILD_KEY + keyPrefix + ids.get(i));
+            }
+        }
+        return locked;
+    }
+
+    private static <R, ID> List<R> inOrder(List<ID> ids, Map<ID, R> found) {
+        List<R> list = new ArrayList<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
 
     /**
      * 尝试获取锁。
-     * 使用Redis的setIfAbsent方法来尝试为指定的key设置值，如果key不存在，则设置成功并返回true，表示获取锁成功；
-     * 如果key已存在，则设置失败，返回false，表示获取锁失败。
+     * 使用Redis的setIfAbsent方法来尝试为指定的key设置值，如果key不存在，则设置成功，表示获取锁成功；
+     * 如果key已存在，则设置失败，表示获取锁失败。
      *
      * @param key 锁的关键字，用于标识锁。
-     * @return boolean 返回true表示成功获取锁，返回false表示获取锁失败。
+     * @return String 获取成功时返回锁的标识，释放锁时使用；获取失败时返回null。
+     */
+    private String tryLock(String key){
+        // 使用Redis的setIfAbsent方法尝试设置key的值为随机标识，并设置过期时间，如果key不存在则设置成功
+        String token = UUID.randomUUID().toString(true);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, LOCK_REBUILD_TTL, TimeUnit.SECONDS);
+        // 判断设置结果，成功时返回标识，失败时返回null
+        return BooleanUtil.isTrue(flag) ? token : null;
+    }
+
+
+    // 释放锁，只释放自己持有的锁，重建超过租约时长后不会误删其他请求的锁
+    private void unLock(String key, String token){
+        redisScriptRegistry.execute("unlock", Long.class, Collections.singletonList(key), token);
+    }
+
+    /**
+     * 从Redis读取的缓存值和对应的编解码器
      */
-    private boolean tryLock(String key){
-        // 使用Redis的setIfAbsent方法尝试设置key的值为"1"，并设置过期时间为10秒，如果key不存在则设置成功并返回true
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        // 判断设置结果，返回true表示成功获取锁，返回false表示获取锁失败
-        return BooleanUtil.isTrue(flag);
+    private static class Encoded {
+        private final byte[] bytes;
+        private final CacheCodec codec;
+
+        Encoded(byte[] bytes, CacheCodec codec) {
+            this.bytes = bytes;
+            this.codec = codec;
+        }
     }
 
+    /**
+     * 一级缓存中的数据
+     */
+    private static class LocalEntry {
+        private final Object data;
+        private final LocalDateTime expireTime;
 
-    // 释放锁
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
+        LocalEntry(Object data, LocalDateTime expireTime) {
+            this.data = data;
+            this.expireTime = expireTime;
+        }
     }
 }
@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient的缓存值编解码器，实现类注册为Spring Bean即可，通过 hmdp.cache.codec 按版本号选择。
+ * 不同版本写入不同的key（json使用原始key，其他版本在key后追加 "@版本号"），切换编解码器时新旧数据互不干扰。
+ * 空值（缓存穿透时写入的空对象）由CacheClient统一保存为空字节数组，不经过编解码器。
+ */
+public interface CacheCodec {
+
+    /**
+     * @return 版本号，同时作为key的后缀，数据格式不兼容的修改必须使用新的版本号
+     */
+    String version();
+
+    /**
+     * 编码普通缓存值
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码普通缓存值
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的缓存值
+     */
+    byte[] encodeLogical(RedisData redisData);
+
+    /**
+     * 解码带逻辑过期时间的缓存值，一次解码得到type类型的data
+     */
+    RedisData decodeLogical(byte[] bytes, Class<?> type);
+}
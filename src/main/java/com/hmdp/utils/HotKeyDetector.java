@@ -0,0 +1,217 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.hmdp.dto.HotKeyReport;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测。
+ * 1.所有经过StringRedisTemplate的读命令和CacheClient本地副本的命中都调用record，用无锁的count-min sketch估计每个key的读取次数；
+ * 2.估计值最大的top-K个key单独记录，定时将所有计数减半（衰减），统计反映的是最近几个周期的访问量；
+ * 3.一个衰减周期内的估计值超过阈值的key提升为热点key，获得一个短租约，租约内CacheClient从本地副本读取，不访问Redis；
+ *   持续被读取的热点key不断续约，访问量下降后租约自然过期；
+ * 4.top-K通过 /admin/hot-keys 和指标 cache.hotkey.* 上报。
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    /**
+     * count-min sketch的行数，每行使用不同的哈希
+     */
+    private static final int DEPTH = 4;
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 是否统计热点key
+     */
+    @Value("${hmdp.hotkey.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * count-min sketch每行的计数器个数
+     */
+    @Value("${hmdp.hotkey.width:4096}")
+    private int width;
+
+    /**
+     * 记录估计值最大的key的个数
+     */
+    @Value("${hmdp.hotkey.top-k:20}")
+    private int topK;
+
+    /**
+     * 一个衰减周期内的估计读取次数超过该值时提升为热点key
+     */
+    @Value("${hmdp.hotkey.threshold:2000}")
+    private long threshold;
+
+    /**
+     * 热点key的租约（毫秒）
+     */
+    @Value("${hmdp.hotkey.lease-ms:2000}")
+    private long leaseMs;
+
+    private AtomicLongArray sketch;
+
+    /**
+     * 估计值最大的key -> 估计值，最多保留topK个
+     */
+    private final Map<String, Long> top = new ConcurrentHashMap<>();
+
+    /**
+     * top-K已满时的最小估计值，估计值不超过它的key不进入top-K
+     */
+    private volatile long topFloor;
+
+    /**
+     * 热点key -> 租约到期时间
+     */
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    private Counter promotions;
+
+    private MultiGauge topGauge;
+
+    public HotKeyDetector(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        sketch = new AtomicLongArray(DEPTH * width);
+        promotions = Counter.builder("cache.hotkey.promoted")
+                .description("提升为热点key的次数").register(meterRegistry);
+        Gauge.builder("cache.hotkey.hot", hotKeys, Map::size)
+                .description("当前持有租约的热点key个数").register(meterRegistry);
+        topGauge = MultiGauge.builder("cache.hotkey.count")
+                .description("top-K key在当前衰减周期内的估计读取次数").register(meterRegistry);
+    }
+
+    /**
+     * 记录一次读取
+     * @param key Redis的key
+     */
+    public void record(String key) {
+        if (!enabled || key == null) {
+            return;
+        }
+        long[] hash = MurmurHash.hash128(key.getBytes(StandardCharsets.UTF_8));
+        long count = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * width + (int) Math.floorMod(hash[0] + i * hash[1], (long) width);
+            count = Math.min(count, sketch.incrementAndGet(index));
+        }
+        if (count >= threshold) {
+            Long previous = hotKeys.put(key, System.currentTimeMillis() + leaseMs);
+            if (previous == null) {
+                promotions.increment();
+                log.info("热点key：{}，估计读取次数：{}", key, count);
+            }
+        }
+        if (count > topFloor || top.containsKey(key)) {
+            top.put(key, count);
+            if (top.size() > topK) {
+                trimTop();
+            }
+        }
+    }
+
+    /**
+     * 是否为持有租约的热点key
+     * @param key Redis的key
+     */
+    public boolean isHot(String key) {
+        Long deadline = hotKeys.get(key);
+        if (deadline == null) {
+            return false;
+        }
+        if (deadline < System.currentTimeMillis()) {
+            hotKeys.remove(key, deadline);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 热点key的租约，也是本地副本的有效期
+     */
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+
+    /**
+     * 估计值最大的top-K个key，按估计值降序排列
+     */
+    public List<HotKeyReport> report() {
+        long now = System.currentTimeMillis();
+        return top.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .map(e -> {
+                    HotKeyReport report = new HotKeyReport();
+                    report.setKey(e.getKey());
+                    report.setCount(e.getValue());
+                    Long deadline = hotKeys.get(e.getKey());
+                    report.setHot(deadline != null && deadline >= now);
+                    report.setLeaseMs(deadline == null ? 0L : Math.max(0L, deadline - now));
+                    return report;
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 定时衰减：所有计数减半，清理过期的租约，并上报top-K
+     */
+    @Scheduled(fixedDelayString = "${hmdp.hotkey.decay-interval-ms:5000}")
+    public void decay() {
+        if (!enabled) {
+            return;
+        }
+        for (int i = 0; i < sketch.length(); i++) {
+            if (sketch.get(i) != 0) {
+                sketch.getAndUpdate(i, v -> v >> 1);
+            }
+        }
+        top.replaceAll((key, count) -> count >> 1);
+        top.values().removeIf(count -> count == 0);
+        synchronized (this) {
+            topFloor = top.size() < topK ? 0 : top.values().stream().min(Long::compare).orElse(0L);
+        }
+        long now = System.currentTimeMillis();
+        hotKeys.values().removeIf(deadline -> deadline < now);
+
+        List<MultiGauge.Row<?>> rows = new ArrayList<>(top.size());
+        top.forEach((key, count) -> rows.add(MultiGauge.Row.of(Tags.of("key", key), count)));
+        topGauge.register(rows, true);
+    }
+
+    /**
+     * 淘汰top-K中估计值最小的key，直到不超过topK个
+     */
+    private synchronized void trimTop() {
+        while (top.size() > topK) {
+            top.entrySet().stream().min(Comparator.comparingLong(Map.Entry::getValue))
+                    .ifPresent(min -> top.remove(min.getKey(), min.getValue()));
+        }
+        topFloor = top.values().stream().min(Long::compare).orElse(0L);
+    }
+}
@@ -0,0 +1,256 @@
+package com.hmdp.utils;
+
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.DefaultStringRedisConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.data.redis.domain.geo.GeoShape;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 向HotKeyDetector上报读命令的StringRedisTemplate。
+ * 包括opsForXxx、execute和executePipelined在内的所有操作都经过preProcessConnection，
+ * 在这里把连接包装成HotKeyConnection：它覆盖了常用读命令的byte[]和String两种重载，执行前记录key
+ * （MGET等多key命令记录每个key），其余命令直接继承DefaultStringRedisConnection，没有额外开销。
+ */
+public class HotKeyRedisTemplate extends StringRedisTemplate {
+
+    private final HotKeyDetector hotKeyDetector;
+
+    public HotKeyRedisTemplate(RedisConnectionFactory connectionFactory, HotKeyDetector hotKeyDetector) {
+        super(connectionFactory);
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    @Override
+    protected RedisConnection preProcessConnection(RedisConnection connection, boolean existingConnection) {
+        return new HotKeyConnection(connection, hotKeyDetector);
+    }
+
+    /**
+     * 记录读命令key的连接，覆盖的方法就是需要统计的读命令
+     */
+    private static class HotKeyConnection extends DefaultStringRedisConnection {
+
+        private final HotKeyDetector hotKeyDetector;
+
+        HotKeyConnection(RedisConnection connection, HotKeyDetector hotKeyDetector) {
+            super(connection);
+            this.hotKeyDetector = hotKeyDetector;
+        }
+
+        private void record(String key) {
+            hotKeyDetector.record(key);
+        }
+
+        private void record(byte[] key) {
+            hotKeyDetector.record(new String(key, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public byte[] get(byte[] key) {
+            record(key);
+            return super.get(key);
+        }
+
+        @Override
+        public String get(String key) {
+            record(key);
+            return super.get(key);
+        }
+
+        @Override
+        public List<byte[]> mGet(byte[]... keys) {
+            for (byte[] key : keys) {
+                record(key);
+            }
+            return super.mGet(keys);
+        }
+
+        @Override
+        public List<String> mGet(String... keys) {
+            for (String key : keys) {
+                record(key);
+            }
+            return super.mGet(keys);
+        }
+
+        @Override
+        public byte[] hGet(byte[] key, byte[] field) {
+            record(key);
+            return super.hGet(key, field);
+        }
+
+        @Override
+        public String hGet(String key, String field) {
+            record(key);
+            return super.hGet(key, field);
+        }
+
+        @Override
+        public List<byte[]> hMGet(byte[] key, byte[]... fields) {
+            record(key);
+            return super.hMGet(key, fields);
+        }
+
+        @Override
+        public List<String> hMGet(String key, String... fields) {
+            record(key);
+            return super.hMGet(key, fields);
+        }
+
+        @Override
+        public Map<byte[], byte[]> hGetAll(byte[] key) {
+            record(key);
+            return super.hGetAll(key);
+        }
+
+        @Override
+        public Map<String, String> hGetAll(String key) {
+            record(key);
+            return super.hGetAll(key);
+        }
+
+        @Override
+        public Boolean hExists(byte[] key, byte[] field) {
+            record(key);
+            return super.hExists(key, field);
+        }
+
+        @Override
+        public Boolean hExists(String key, String field) {
+            record(key);
+            return super.hExists(key, field);
+        }
+
+        @Override
+        public Boolean sIsMember(byte[] key, byte[] value) {
+            record(key);
+            return super.sIsMember(key, value);
+        }
+
+        @Override
+        public Boolean sIsMember(String key, String value) {
+            record(key);
+            return super.sIsMember(key, value);
+        }
+
+        @Override
+        public Set<byte[]> sMembers(byte[] key) {
+            record(key);
+            return super.sMembers(key);
+        }
+
+        @Override
+        public Set<String> sMembers(String key) {
+            record(key);
+            return super.sMembers(key);
+        }
+
+        @Override
+        public Long sCard(byte[] key) {
+            record(key);
+            return super.sCard(key);
+        }
+
+        @Override
+        public Long sCard(String key) {
+            record(key);
+            return super.sCard(key);
+        }
+
+        @Override
+        public Double zScore(byte[] key, byte[] value) {
+            record(key);
+            return super.zScore(key, value);
+        }
+
+        @Override
+        public Double zScore(String key, String value) {
+            record(key);
+            return super.zScore(key, value);
+        }
+
+        @Override
+        public Set<byte[]> zRange(byte[] key, long start, long end) {
+            record(key);
+            return super.zRange(key, start, end);
+        }
+
+        @Override
+        public Set<String> zRange(String key, long start, long end) {
+            record(key);
+            return super.zRange(key, start, end);
+        }
+
+        @Override
+        public Set<byte[]> zRevRange(byte[] key, long start, long end) {
+            record(key);
+            return super.zRevRange(key, start, end);
+        }
+
+        @Override
+        public Set<String> zRevRange(String key, long start, long end) {
+            record(key);
+            return super.zRevRange(key, start, end);
+        }
+
+        @Override
+        public Set<byte[]> zRangeByScore(byte[] key, double min, double max) {
+            record(key);
+            return super.zRangeByScore(key, min, max);
+        }
+
+        @Override
+        public Set<String> zRangeByScore(String key, double min, double max) {
+            record(key);
+            return super.zRangeByScore(key, min, max);
+        }
+
+        @Override
+        public List<byte[]> lRange(byte[] key, long start, long end) {
+            record(key);
+            return super.lRange(key, start, end);
+        }
+
+        @Override
+        public List<String> lRange(String key, long start, long end) {
+            record(key);
+            return super.lRange(key, start, end);
+        }
+
+        @Override
+        public List<Point> geoPos(byte[] key, byte[]... members) {
+            record(key);
+            return super.geoPos(key, members);
+        }
+
+        @Override
+        public List<Point> geoPos(String key, String... members) {
+            record(key);
+            return super.geoPos(key, members);
+        }
+
+        @Override
+        public GeoResults<RedisGeoCommands.GeoLocation<byte[]>> geoSearch(byte[] key, GeoReference<byte[]> reference,
+                                                                        GeoShape predicate, RedisGeoCommands.GeoSearchCommandArgs args) {
+            record(key);
+            return super.geoSearch(key, reference, predicate, args);
+        }
+
+        @Override
+        public GeoResults<RedisGeoCommands.GeoLocation<String>> geoSearch(String key, GeoReference<String> reference,
+                                                                        GeoShape predicate, RedisGeoCommands.GeoSearchCommandArgs args) {
+            record(key);
+            return super.geoSearch(key, reference, predicate, args);
+        }
+    }
+}
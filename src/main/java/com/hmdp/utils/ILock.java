@@ -1,8 +0,0 @@
-package com.hmdp.utils;
-
-public interface ILock {
-
-    boolean tryLock(Long timeSec);
-
-    void unlock();
-}
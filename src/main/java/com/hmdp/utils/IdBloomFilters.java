@@ -0,0 +1,390 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 数据ID的布隆过滤器，用于拦截查询不存在ID的请求，防止缓存穿透。
+ * 1.每个过滤器在Redis中保存为多层位图 bloom:{name}:{gen}:{layer}，元素数 bloom:{name}:{gen}:count，
+ *   当前代数、第一层容量和误判率保存在哈希 bloom:{name} 中；每个节点在本地保存一份副本，查询只访问本地副本；
+ * 2.启动时Redis中没有过滤器则从数据库分页流式读取全部ID构建，构建好的位图整块写入Redis；否则从Redis加载；
+ * 3.新增数据时写入Redis位图和本地副本，并通过发布订阅通知其他节点写入本地副本，定时与Redis对比元素数兜底；
+ * 4.布隆过滤器不支持删除，定时重新构建新的一代并切换，旧数据随旧的一代一起删除。
+ * 过滤器尚未就绪或加载失败时放行所有请求。拦截结果以 bloom.filter.requests 指标暴露。
+ */
+@Slf4j
+@Component
+public class IdBloomFilters implements MessageListener {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+
+    /**
+     * 切换到新的一代之后等待多久（毫秒）再补读一次新增的ID，覆盖切换前后按旧的一代写入的ID
+     */
+    private static final long SWITCH_GRACE_MS = 1000L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final RedissonClient redissonClient;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 第一层的容量，数据量超过后自动扩展新的一层
+     */
+    @Value("${hmdp.bloom.expected-insertions:100000}")
+    private long expectedInsertions;
+
+    /**
+     * 误判率
+     */
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 构建时每页读取的ID数
+     */
+    @Value("${hmdp.bloom.page-size:1000}")
+    private int pageSize;
+
+    /**
+     * 过滤器名 -> 过滤器
+     */
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    public IdBloomFilters(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                          RedissonClient redissonClient, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.redissonClient = redissonClient;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "bloom-filter"));
+        listenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 注册过滤器，并在后台加载或构建
+     * @param name 过滤器名
+     * @param idLoader 按ID升序分页读取数据库中的ID：(上一页最后一个ID, 每页数量) -> ID列表，第一页的ID为0
+     */
+    public void register(String name, BiFunction<Long, Integer, List<Long>> idLoader) {
+        if (!enabled) {
+            return;
+        }
+        Filter filter = new Filter(name, idLoader);
+        filters.put(name, filter);
+        executor.submit(() -> initialize(filter));
+    }
+
+    /**
+     * 判断ID是否可能存在，返回false时一定不存在
+     * @param name 过滤器名
+     * @param id 数据ID
+     */
+    public boolean mightContain(String name, Long id) {
+        Filter filter = filters.get(name);
+        if (filter == null || filter.local == null || id == null) {
+            return true;
+        }
+        if (filter.local.mightContain(id)) {
+            filter.passed.increment();
+            return true;
+        }
+        filter.rejected.increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后写入过滤器
+     * @param name 过滤器名
+     * @param id 新增数据的ID
+     */
+    public void add(String name, Long id) {
+        Filter filter = filters.get(name);
+        if (filter == null || filter.local == null || id == null) {
+            // 尚未就绪，构建或加载完成后会包含该ID
+            return;
+        }
+        try {
+            add(filter, id);
+        } catch (Exception e) {
+            // 写入失败时该ID可能被误拦截，直到下次重新构建，这里只记录日志，不影响新增数据
+            log.error("写入布隆过滤器失败，name={}，id={}", name, id, e);
+        }
+    }
+
+    private void add(Filter filter, long id) {
+        ScalableBloomFilter local = filter.local;
+        long gen = filter.gen;
+        // 1.元素数加一，据此确定写入的层
+        Long count = stringRedisTemplate.opsForValue().increment(countKey(filter.name, gen));
+        int layer = local.layerOf(count == null ? 1 : count);
+        // 2.在同一个管道中设置各个位
+        String layerKey = layerKey(filter.name, gen, layer);
+        long[] offsets = local.offsets(layer, id);
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) throws DataAccessException {
+                for (long offset : offsets) {
+                    operations.opsForValue().setBit(layerKey, offset, true);
+                }
+                return null;
+            }
+        });
+        // 3.写入本地副本并通知其他节点
+        local.put(layer, id);
+        filter.count = Math.max(filter.count, count == null ? 0 : count);
+        stringRedisTemplate.convertAndSend(BLOOM_CHANNEL, "add:" + filter.name + ":" + gen + ":" + layer + ":" + count + ":" + id);
+    }
+
+    /**
+     * 收到其他节点的通知：add:name:gen:layer:count:id 写入本地副本；reload:name 重新加载
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+        Filter filter = filters.get(parts[1]);
+        if (filter == null) {
+            return;
+        }
+        if ("reload".equals(parts[0])) {
+            executor.submit(() -> load(filter));
+            return;
+        }
+        ScalableBloomFilter local = filter.local;
+        if (local != null && filter.gen == Long.parseLong(parts[2])) {
+            local.put(Integer.parseInt(parts[3]), Long.parseLong(parts[5]));
+            filter.count = Math.max(filter.count, Long.parseLong(parts[4]));
+        }
+    }
+
+    /**
+     * 定时与Redis对比代数和元素数，不一致时重新加载，覆盖错过的通知；尚未就绪的过滤器重新初始化
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.sync-interval-ms:60000}")
+    public void sync() {
+        for (Filter filter : filters.values()) {
+            executor.submit(() -> {
+                if (filter.local == null) {
+                    initialize(filter);
+                    return;
+                }
+                try {
+                    Object gen = stringRedisTemplate.opsForHash().get(BLOOM_KEY + filter.name, "gen");
+                    String count = gen == null ? null : stringRedisTemplate.opsForValue().get(countKey(filter.name, Long.parseLong(gen.toString())));
+                    if (gen == null || Long.parseLong(gen.toString()) != filter.gen
+                            || (count != null && Long.parseLong(count) != filter.count)) {
+                        load(filter);
+                    }
+                } catch (Exception e) {
+                    log.warn("同步布隆过滤器失败，name={}", filter.name, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * 定时重新构建，去掉已删除数据的ID，多个节点中只有一个执行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.rebuild-interval-ms:86400000}",
+            initialDelayString = "${hmdp.bloom.rebuild-interval-ms:86400000}")
+    public void rebuild() {
+        for (Filter filter : filters.values()) {
+            RLock lock = redissonClient.getLock(LOCK_BLOOM_KEY + filter.name);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                build(filter);
+            } catch (Exception e) {
+                log.error("重新构建布隆过滤器失败，name={}", filter.name, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 从Redis加载，Redis中没有时加锁构建
+     */
+    private void initialize(Filter filter) {
+        try {
+            if (load(filter)) {
+                return;
+            }
+            RLock lock = redissonClient.getLock(LOCK_BLOOM_KEY + filter.name);
+            lock.lock();
+            try {
+                // 等待锁期间其他节点可能已经构建完成
+                if (!load(filter)) {
+                    build(filter);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            log.error("初始化布隆过滤器失败，等待下次同步时重试，name={}", filter.name, e);
+        }
+    }
+
+    /**
+     * 从Redis加载当前一代的位图
+     * @return Redis中没有该过滤器时返回false
+     */
+    private boolean load(Filter filter) {
+        Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(BLOOM_KEY + filter.name);
+        if (meta.get("gen") == null) {
+            return false;
+        }
+        long gen = Long.parseLong(meta.get("gen").toString());
+        ScalableBloomFilter local = new ScalableBloomFilter(Long.parseLong(meta.get("capacity").toString()),
+                Double.parseDouble(meta.get("fpp").toString()));
+        String countStr = stringRedisTemplate.opsForValue().get(countKey(filter.name, gen));
+        long count = countStr == null ? 0 : Long.parseLong(countStr);
+        int layers = local.layerOf(count) + 1;
+        for (int i = 0; i < layers; i++) {
+            byte[] key = layerKey(filter.name, gen, i).getBytes(StandardCharsets.UTF_8);
+            local.load(i, stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key)));
+        }
+        filter.gen = gen;
+        filter.count = count;
+        filter.local = local;
+        log.info("加载布隆过滤器，name={}，gen={}，元素数={}，层数={}", filter.name, gen, count, layers);
+        return true;
+    }
+
+    /**
+     * 从数据库流式读取全部ID构建新的一代，写入Redis后切换，并删除旧的一代
+     */
+    private void build(Filter filter) throws InterruptedException {
+        String metaKey = BLOOM_KEY + filter.name;
+        Object oldGenValue = stringRedisTemplate.opsForHash().get(metaKey, "gen");
+        Long oldGen = oldGenValue == null ? null : Long.valueOf(oldGenValue.toString());
+        long gen = oldGen == null ? 1 : oldGen + 1;
+        // 1.在本地构建
+        ScalableBloomFilter local = new ScalableBloomFilter(expectedInsertions, fpp);
+        long count = 0;
+        long lastId = 0;
+        List<Long> ids;
+        do {
+            ids = filter.idLoader.apply(lastId, pageSize);
+            for (Long id : ids) {
+                local.put(local.layerOf(++count), id);
+                lastId = id;
+            }
+        } while (ids.size() == pageSize);
+        // 2.位图整块写入Redis
+        int layers = local.layerCount();
+        for (int i = 0; i < layers; i++) {
+            byte[] key = layerKey(filter.name, gen, i).getBytes(StandardCharsets.UTF_8);
+            byte[] bits = local.bytes(i);
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(key, bits));
+        }
+        stringRedisTemplate.opsForValue().set(countKey(filter.name, gen), String.valueOf(count));
+        // 3.切换到新的一代，通知各节点重新加载
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("gen", String.valueOf(gen));
+        meta.put("capacity", String.valueOf(expectedInsertions));
+        meta.put("fpp", String.valueOf(fpp));
+        stringRedisTemplate.opsForHash().putAll(metaKey, meta);
+        filter.gen = gen;
+        filter.count = count;
+        filter.local = local;
+        stringRedisTemplate.convertAndSend(BLOOM_CHANNEL, "reload:" + filter.name);
+        log.info("构建布隆过滤器，name={}，gen={}，元素数={}，层数={}", filter.name, gen, count, layers);
+        if (oldGen == null) {
+            return;
+        }
+        // 4.切换前后写入旧的一代的ID补写到新的一代，然后删除旧的一代
+        Thread.sleep(SWITCH_GRACE_MS);
+        do {
+            ids = filter.idLoader.apply(lastId, pageSize);
+            for (Long id : ids) {
+                add(filter, id);
+                lastId = id;
+            }
+        } while (ids.size() == pageSize);
+        String oldCount = stringRedisTemplate.opsForValue().get(countKey(filter.name, oldGen));
+        int oldLayers = local.layerOf(oldCount == null ? 0 : Long.parseLong(oldCount)) + 1;
+        List<String> oldKeys = new ArrayList<>();
+        oldKeys.add(countKey(filter.name, oldGen));
+        for (int i = 0; i < oldLayers; i++) {
+            oldKeys.add(layerKey(filter.name, oldGen, i));
+        }
+        stringRedisTemplate.delete(oldKeys);
+    }
+
+    private static String layerKey(String name, long gen, int layer) {
+        return BLOOM_KEY + name + ":" + gen + ":" + layer;
+    }
+
+    private static String countKey(String name, long gen) {
+        return BLOOM_KEY + name + ":" + gen + ":count";
+    }
+
+    private class Filter {
+        private final String name;
+        private final BiFunction<Long, Integer, List<Long>> idLoader;
+        private final Counter passed;
+        private final Counter rejected;
+        /**
+         * 本地副本，为null表示尚未就绪
+         */
+        private volatile ScalableBloomFilter local;
+        private volatile long gen;
+        private volatile long count;
+
+        Filter(String name, BiFunction<Long, Integer, List<Long>> idLoader) {
+            this.name = name;
+            this.idLoader = idLoader;
+            this.passed = Counter.builder("bloom.filter.requests").tag("name", name).tag("result", "passed")
+                    .description("布隆过滤器放行的请求数").register(meterRegistry);
+            this.rejected = Counter.builder("bloom.filter.requests").tag("name", name).tag("result", "rejected")
+                    .description("布隆过滤器拦截的请求数").register(meterRegistry);
+        }
+    }
+}
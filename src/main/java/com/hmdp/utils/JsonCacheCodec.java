@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * JSON编解码器，与原有的缓存格式相同，使用原始key
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String VERSION = "json";
+
+    @Override
+    public String version() {
+        return VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes, Class<?> type) {
+        // 只解析一次JSON，data直接转换为目标类型
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        redisData.setData(json.getBean("data", type));
+        return redisData;
+    }
+}
@@ -0,0 +1,393 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单消息队列的消费者池。
+ * 1.每个节点生成唯一的节点ID，每个工作线程使用"节点ID-线程序号"作为消费者名称，节点之间不会互相抢占pending-list；
+ * 2.每个节点启动可配置数量的工作线程，共同消费分配给本节点的队列；
+ * 3.可选地将消息队列按优惠券ID的哈希分成多个分区stream.orders.{n}，热点优惠券只会占用一个分区；
+ * 4.节点通过Redis中的心跳有序集合互相发现，节点加入或退出时重新计算分区分配；
+ * 5.节点ID每次启动都不同，已下线节点的消费者在pending-list清空（由OrderPendingRecovery认领）后从消费者组中删除，
+ *   消费者组中不会堆积历史消费者。
+ * 处理失败的消息留在pending-list中，由OrderPendingRecovery负责重试、认领和转入死信队列。
+ */
+@Slf4j
+@Component
+public class OrderConsumerPool {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 每个节点的消费线程数
+     */
+    @Value("${hmdp.seckill.order.consumer-threads:1}")
+    private int consumerThreads;
+
+    /**
+     * 消息队列分区数，小于等于0时只使用单个队列stream.orders
+     */
+    @Value("${hmdp.seckill.order.partitions:0}")
+    private int partitions;
+
+    /**
+     * 节点心跳间隔（毫秒），超过3个心跳间隔未上报的节点视为已下线
+     */
+    @Value("${hmdp.seckill.order.heartbeat-ms:5000}")
+    private long heartbeatMs;
+
+    /**
+     * 当前节点的唯一标识：主机名:进程号:随机串
+     */
+    private final String nodeId;
+
+    /**
+     * 当前节点负责消费的队列，由心跳任务在节点变化时重新分配
+     */
+    private volatile List<String> assignedStreams = Collections.emptyList();
+
+    private volatile boolean running;
+
+    private volatile Function<List<MapRecord<String, Object, Object>>, List<RecordId>> handler;
+
+    private ExecutorService workerExecutor;
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    public OrderConsumerPool(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.nodeId = createNodeId();
+    }
+
+    /**
+     * 根据优惠券ID计算订单消息应该写入的队列
+     * @param voucherId 优惠券ID
+     * @return 队列的key
+     */
+    public String streamKeyOf(Long voucherId) {
+        if (partitions <= 0) {
+            return SECKILL_ORDER_STREAM;
+        }
+        return SECKILL_ORDER_STREAM + "." + Math.floorMod(voucherId.hashCode(), partitions);
+    }
+
+    /**
+     * @return 所有分区队列的key
+     */
+    public List<String> allStreams() {
+        if (partitions <= 0) {
+            return Collections.singletonList(SECKILL_ORDER_STREAM);
+        }
+        List<String> streams = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            streams.add(SECKILL_ORDER_STREAM + "." + i);
+        }
+        return streams;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return 当前节点负责消费的队列
+     */
+    public List<String> getAssignedStreams() {
+        return assignedStreams;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 处理一个队列中的一批消息，并用一次XACK确认处理成功的消息
+     * @return 处理成功的消息ID
+     */
+    public List<RecordId> handleAndAck(String streamKey, List<MapRecord<String, Object, Object>> records) {
+        List<RecordId> handled = handler.apply(records);
+        if (!handled.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(
+                    streamKey, SECKILL_ORDER_GROUP, handled.toArray(new RecordId[0]));
+        }
+        return handled;
+    }
+
+    /**
+     * 启动消费者池
+     * @param count 每次读取的最大消息数
+     * @param lingerMs 读取到第一条消息后继续凑满count条的最长等待时间，0表示不等待
+     * @param handler 消息处理器，返回处理成功（可以确认）的消息ID
+     */
+    public synchronized void start(int count, long lingerMs,
+                                   Function<List<MapRecord<String, Object, Object>>, List<RecordId>> handler) {
+        if (running) {
+            return;
+        }
+        running = true;
+        this.handler = handler;
+        // 1.确保所有队列和消费者组都已创建
+        allStreams().forEach(this::createGroupIfAbsent);
+        // 2.注册节点并计算首次分区分配，之后定时心跳、重新分配
+        heartbeat();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "order-consumer-heartbeat"));
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        // 3.启动工作线程
+        AtomicInteger index = new AtomicInteger();
+        workerExecutor = Executors.newFixedThreadPool(consumerThreads,
+                r -> new Thread(r, "order-consumer-" + index.getAndIncrement()));
+        for (int i = 0; i < consumerThreads; i++) {
+            workerExecutor.submit(new Worker(nodeId + "-" + i, count, lingerMs));
+        }
+        log.info("订单消费者池已启动，节点={}，线程数={}，分区数={}", nodeId, consumerThreads, partitions);
+    }
+
+    /**
+     * 节点下线：停止工作线程并从节点集合中移除，剩余节点在下一次心跳时接管分区
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        heartbeatExecutor.shutdownNow();
+        workerExecutor.shutdownNow();
+        try {
+            stringRedisTemplate.opsForZSet().remove(SECKILL_CONSUMER_NODES_KEY, nodeId);
+        } catch (Exception e) {
+            log.warn("移除消费者节点失败，节点={}", nodeId, e);
+        }
+    }
+
+    /**
+     * 上报心跳，清理过期节点，并根据存活节点重新分配分区：
+     * 存活节点按ID排序，第rank个节点负责编号满足 partition % 节点数 == rank 的分区。
+     */
+    private void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().add(SECKILL_CONSUMER_NODES_KEY, nodeId, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(SECKILL_CONSUMER_NODES_KEY, 0, now - heartbeatMs * 3);
+            Set<String> nodes = stringRedisTemplate.opsForZSet().range(SECKILL_CONSUMER_NODES_KEY, 0, -1);
+            List<String> alive = nodes == null ? new ArrayList<>() : new ArrayList<>(nodes);
+            Collections.sort(alive);
+            int rank = alive.indexOf(nodeId);
+            List<String> streams = allStreams();
+            List<String> assigned = new ArrayList<>();
+            if (rank < 0 || streams.size() == 1) {
+                // 单队列模式下所有节点共同消费同一个消费者组
+                assigned.addAll(streams);
+            } else {
+                for (int i = 0; i < streams.size(); i++) {
+                    if (i % alive.size() == rank) {
+                        assigned.add(streams.get(i));
+                    }
+                }
+            }
+            if (!assigned.equals(assignedStreams)) {
+                log.info("订单队列重新分配，节点={}，存活节点数={}，负责队列={}", nodeId, alive.size(), assigned);
+                assignedStreams = Collections.unmodifiableList(assigned);
+            }
+            removeDeadConsumers(streams, new HashSet<>(alive));
+        } catch (Exception e) {
+            // 心跳失败时保留上一次的分配结果
+            log.error("订单消费者心跳异常", e);
+        }
+    }
+
+    /**
+     * 删除已下线节点的消费者 XGROUP DELCONSUMER：节点已不在存活集合中、pending-list为空并且空闲超过3个心跳间隔。
+     * 仍有pending消息的消费者保留，等OrderPendingRecovery认领走之后再删除，删除消费者不会丢失消息。
+     */
+    private void removeDeadConsumers(List<String> streams, Set<String> alive) {
+        for (String streamKey : streams) {
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(streamKey, SECKILL_ORDER_GROUP);
+            consumers.forEach(consumer -> {
+                String name = consumer.consumerName();
+                int index = name.lastIndexOf('-');
+                if (index < 0 || alive.contains(name.substring(0, index))
+                        || consumer.pendingCount() > 0 || consumer.idleTimeMs() < heartbeatMs * 3) {
+                    return;
+                }
+                stringRedisTemplate.opsForStream().deleteConsumer(streamKey, Consumer.from(SECKILL_ORDER_GROUP, name));
+                log.info("删除已下线节点的消费者，stream={}，消费者={}", streamKey, name);
+            });
+        }
+    }
+
+    /**
+     * 创建消费者组（队列不存在时一并创建），消费者组已存在时忽略
+     */
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (DataAccessException e) {
+            if (!StrUtil.contains(e.getMessage(), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private static String createNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "unknown";
+        }
+        // RuntimeMXBean的名称形如 pid@hostname
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        return host + ":" + pid + ":" + UUID.randomUUID().toString(true).substring(0, 8);
+    }
+
+    /**
+     * 工作线程：以自己的消费者名称从本节点负责的所有队列中读取消息
+     */
+    private class Worker implements Runnable {
+        private final String consumerName;
+        private final int count;
+        private final long lingerMs;
+
+        Worker(String consumerName, int count, long lingerMs) {
+            this.consumerName = consumerName;
+            this.count = count;
+            this.lingerMs = lingerMs;
+        }
+
+        @Override
+        public void run() {
+            // 消费者名称每次启动都是新的，没有遗留的pending-list；上一次运行遗留的消息由OrderPendingRecovery认领
+            while (running && !Thread.currentThread().isInterrupted()) {
+                List<String> streams = assignedStreams;
+                if (streams.isEmpty()) {
+                    // 节点数多于分区数时，本节点可能没有分到队列
+                    sleep(heartbeatMs);
+                    continue;
+                }
+                try {
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS s1 s2 ... > > ...
+                    List<MapRecord<String, Object, Object>> list = readBatch(streams);
+                    if (list.isEmpty()) {
+                        continue;
+                    }
+                    // 2.按队列分组处理并确认
+                    Map<String, List<MapRecord<String, Object, Object>>> byStream = new LinkedHashMap<>();
+                    for (MapRecord<String, Object, Object> record : list) {
+                        byStream.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record);
+                    }
+                    for (Map.Entry<String, List<MapRecord<String, Object, Object>>> entry : byStream.entrySet()) {
+                        int handled = handleAndAck(entry.getKey(), entry.getValue()).size();
+                        if (handled < entry.getValue().size()) {
+                            handlePendingList(entry.getKey());
+                        }
+                    }
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("处理订单异常，消费者={}", consumerName, e);
+                    streams.forEach(this::handlePendingList);
+                }
+            }
+        }
+
+        /**
+         * 读取一批订单消息。第一次读取阻塞等待，拿到消息后在linger时间内继续读取，直到凑满一批或超时。
+         */
+        @SuppressWarnings("unchecked")
+        private List<MapRecord<String, Object, Object>> readBatch(List<String> streams) {
+            StreamOffset<String>[] offsets = streams.stream()
+                    .map(key -> StreamOffset.create(key, ReadOffset.lastConsumed()))
+                    .toArray(StreamOffset[]::new);
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(count);
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                    StreamReadOptions.empty().count(count).block(Duration.ofSeconds(2)),
+                    offsets
+            );
+            if (list == null || list.isEmpty()) {
+                return batch;
+            }
+            batch.addAll(list);
+            long deadline = System.currentTimeMillis() + lingerMs;
+            while (batch.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                // BLOCK 0 表示无限等待，因此剩余时间不足1毫秒时直接结束
+                if (remaining < 1) {
+                    break;
+                }
+                list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(count - batch.size()).block(Duration.ofMillis(remaining)),
+                        offsets
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
+
+        /**
+         * 将当前消费者在指定队列中已读取但未确认的消息重新处理一遍。
+         * 读取位置随已读取的消息向后推进，每条消息最多重试一次，仍然失败的消息留在pending-list中，
+         * 由OrderPendingRecovery在空闲超时后重新认领，超过最大投递次数后转入死信队列，不会阻塞正常消费。
+         */
+        private void handlePendingList(String streamKey) {
+            String offset = "0";
+            while (running) {
+                try {
+                    // 从pending-list中读取消息 XREADGROUP GROUP g1 consumer COUNT n STREAMS stream.orders offset
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(count),
+                            StreamOffset.create(streamKey, ReadOffset.from(offset))
+                    );
+                    // 没有消息说明pending-list已处理完，退出循环
+                    if (list == null || list.isEmpty()) {
+                        break;
+                    }
+                    offset = list.get(list.size() - 1).getId().getValue();
+                    handleAndAck(streamKey, list);
+                } catch (Exception e) {
+                    log.error("处理pending-list异常，消费者={}", consumerName, e);
+                    break;
+                }
+            }
+        }
+
+        private void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订单消息pending-list的恢复任务。
+ * 1.定时扫描本节点负责的队列中空闲超时的pending消息（XPENDING），包括已下线节点遗留的消息；
+ * 2.投递次数未超过上限的消息，用XCLAIM认领到本节点的恢复消费者名下重新处理，XCLAIM会累加投递次数；
+ * 3.投递次数达到上限的消息连同失败原因写入死信队列stream.orders.dlq，并确认原消息，订单状态标记为FAILED；
+ * 4.死信队列中的消息可以查看、重新投递或者删除。
+ * 一条无法处理的消息最多被投递max-deliveries次，不会阻塞后续订单落库。
+ */
+@Slf4j
+@Component
+public class OrderPendingRecovery {
+
+    /**
+     * 转入死信队列时附加的字段
+     */
+    private static final Set<String> DEAD_LETTER_FIELDS = new HashSet<>(Arrays.asList("stream", "recordId", "deliveries", "error"));
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final OrderConsumerPool orderConsumerPool;
+
+    private final OrderStatusTracker orderStatusTracker;
+
+    /**
+     * 消息空闲超过该时间（毫秒）才会被重新认领，避免抢走仍在处理中的消息
+     */
+    @Value("${hmdp.seckill.order.recovery.min-idle-ms:30000}")
+    private long minIdleMs;
+
+    /**
+     * 最大投递次数，达到后转入死信队列
+     */
+    @Value("${hmdp.seckill.order.recovery.max-deliveries:5}")
+    private long maxDeliveries;
+
+    /**
+     * 每个队列每次扫描的pending消息数
+     */
+    @Value("${hmdp.seckill.order.recovery.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 最近一次处理失败的原因：队列/消息ID -> 异常信息，转入死信队列时一并记录
+     */
+    private final Cache<String, String> lastErrors = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            .build();
+
+    public OrderPendingRecovery(StringRedisTemplate stringRedisTemplate, OrderConsumerPool orderConsumerPool,
+                                OrderStatusTracker orderStatusTracker) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.orderConsumerPool = orderConsumerPool;
+        this.orderStatusTracker = orderStatusTracker;
+    }
+
+    /**
+     * 记录消息处理失败的原因
+     * @param record 处理失败的消息
+     * @param e 异常
+     */
+    public void recordFailure(MapRecord<String, Object, Object> record, Throwable e) {
+        lastErrors.put(record.getStream() + "/" + record.getId().getValue(), e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+
+    /**
+     * 定时扫描本节点负责的队列
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.recovery.interval-ms:5000}")
+    public void recover() {
+        if (!orderConsumerPool.isRunning()) {
+            return;
+        }
+        for (String streamKey : orderConsumerPool.getAssignedStreams()) {
+            try {
+                recover(streamKey);
+            } catch (Exception e) {
+                log.error("恢复pending消息异常，stream={}", streamKey, e);
+            }
+        }
+    }
+
+    private void recover(String streamKey) {
+        // 1.查询pending-list XPENDING stream.orders g1 - + count
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(streamKey, SECKILL_ORDER_GROUP, Range.unbounded(), batchSize);
+        List<RecordId> retry = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() < minIdleMs) {
+                continue;
+            }
+            if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                // 2.投递次数达到上限，转入死信队列
+                moveToDeadLetter(streamKey, message);
+            } else {
+                retry.add(message.getId());
+            }
+        }
+        if (retry.isEmpty()) {
+            return;
+        }
+        // 3.认领空闲超时的消息并重新处理，XCLAIM带min-idle，多个节点同时认领时只有一个会成功
+        List<MapRecord<String, Object, Object>> claimed = claim(streamKey, retry);
+        if (claimed.isEmpty()) {
+            return;
+        }
+        log.info("重新处理pending消息，stream={}，数量={}", streamKey, claimed.size());
+        orderConsumerPool.handleAndAck(streamKey, claimed);
+    }
+
+    /**
+     * XCLAIM stream.orders g1 nodeId-recovery minIdle id1 id2 ...
+     */
+    private List<MapRecord<String, Object, Object>> claim(String streamKey, List<RecordId> ids) {
+        String consumerName = orderConsumerPool.getNodeId() + "-recovery";
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP,
+                        consumerName, RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(minIdleMs))
+                                .ids(ids.toArray(new RecordId[0]))));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> list = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            Map<Object, Object> value = new HashMap<>(4);
+            record.getValue().forEach((k, v) ->
+                    value.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            list.add(StreamRecords.newRecord().in(streamKey).withId(record.getId()).ofMap(value));
+        }
+        return list;
+    }
+
+    /**
+     * 将消息写入死信队列，确认原消息，并把订单状态标记为FAILED
+     */
+    private void moveToDeadLetter(String streamKey, PendingMessage message) {
+        String id = message.getIdAsString();
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(streamKey, Range.closed(id, id));
+        String key = streamKey + "/" + id;
+        String error = lastErrors.getIfPresent(key);
+        if (error == null) {
+            error = "超过最大投递次数";
+        }
+        if (records != null && !records.isEmpty()) {
+            Map<String, String> dead = new LinkedHashMap<>();
+            records.get(0).getValue().forEach((k, v) -> dead.put(k.toString(), v.toString()));
+            dead.put("stream", streamKey);
+            dead.put("recordId", id);
+            dead.put("deliveries", String.valueOf(message.getTotalDeliveryCount()));
+            dead.put("error", error);
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, dead);
+            orderStatusTracker.markFailed(orderIdsOf(records.get(0).getValue()), "订单处理失败");
+        }
+        // 消息已被删除（例如被裁剪）时没有内容可以保存，直接确认
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, message.getId());
+        lastErrors.invalidate(key);
+        log.error("订单消息转入死信队列，stream={}，recordId={}，投递次数={}，原因={}",
+                streamKey, id, message.getTotalDeliveryCount(), error);
+    }
+
+    /**
+     * 查看死信队列
+     * @param count 最多返回的消息数，按写入时间倒序
+     * @return 死信消息：消息ID -> 字段
+     */
+    public Map<String, Map<Object, Object>> listDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .reverseRange(SECKILL_ORDER_DLQ, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        Map<String, Map<Object, Object>> result = new LinkedHashMap<>();
+        if (records != null) {
+            records.forEach(record -> result.put(record.getId().getValue(), record.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * 将死信消息重新投递到原队列，并从死信队列中删除
+     * @param deadLetterId 死信消息ID
+     * @return 是否找到并重新投递
+     */
+    public boolean replayDeadLetter(String deadLetterId) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ, Range.closed(deadLetterId, deadLetterId));
+        if (records == null || records.isEmpty()) {
+            return false;
+        }
+        Map<Object, Object> dead = records.get(0).getValue();
+        // 还原原始消息的字段，去掉死信队列附加的字段
+        Map<String, String> order = new HashMap<>(4);
+        dead.forEach((k, v) -> {
+            if (!DEAD_LETTER_FIELDS.contains(k.toString())) {
+                order.put(k.toString(), v.toString());
+            }
+        });
+        stringRedisTemplate.opsForStream().add(dead.get("stream").toString(), order);
+        Long userId = Long.valueOf(order.get("userId"));
+        for (Long orderId : orderIdsOf(dead)) {
+            orderStatusTracker.markQueued(stringRedisTemplate, orderId, userId);
+        }
+        stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ, deadLetterId);
+        log.info("死信消息重新投递，deadLetterId={}，stream={}", deadLetterId, dead.get("stream"));
+        return true;
+    }
+
+    /**
+     * 从死信队列中删除消息
+     * @param deadLetterId 死信消息ID
+     * @return 是否删除成功
+     */
+    public boolean deleteDeadLetter(String deadLetterId) {
+        Long deleted = stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ, deadLetterId);
+        return deleted != null && deleted > 0;
+    }
+
+    /**
+     * 订单消息中的订单ID：普通订单为id字段，组合订单为bundle字段中的各个订单ID
+     */
+    private static List<Long> orderIdsOf(Map<Object, Object> value) {
+        List<Long> ids = new ArrayList<>();
+        Object bundle = value.get("bundle");
+        if (bundle != null) {
+            for (String item : bundle.toString().split(",")) {
+                ids.add(Long.valueOf(item.substring(item.indexOf(':') + 1)));
+            }
+        } else if (value.get("id") != null) {
+            ids.add(Long.valueOf(value.get("id").toString()));
+        }
+        return ids;
+    }
+}
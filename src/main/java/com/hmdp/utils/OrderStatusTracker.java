@@ -0,0 +1,265 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单的异步处理状态。
+ * 秒杀脚本写入QUEUED，订单消费者落库后写入PERSISTED，无法落库时写入FAILED，超时未支付被取消时写入CANCELLED。
+ * 状态保存在Redis哈希 order:status:{orderId} 中（s：状态，u：用户ID，r：失败原因），并设置过期时间；
+ * 终态（FAILED、CANCELLED）在本地缓存，查询时优先读本地缓存，其次读Redis，不会访问MySQL；
+ * PERSISTED之后还可能被取消，不在本地缓存。
+ * 状态变化通过发布订阅通知所有节点，收到通知时先清除本地缓存再读取最新状态，并唤醒长轮询的请求。
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker implements MessageListener {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String PERSISTED = "PERSISTED";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 订单状态在Redis中的保留时间（秒）
+     */
+    @Value("${hmdp.seckill.order.status-ttl-seconds:1800}")
+    private long statusTtlSeconds;
+
+    /**
+     * 终态订单的本地缓存：订单ID -> {状态, 用户ID, 失败原因}，只缓存FAILED和CANCELLED
+     */
+    private Cache<Long, String[]> terminalStates;
+
+    /**
+     * 正在长轮询等待状态变化的请求
+     */
+    private final Map<Long, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    public OrderStatusTracker(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        terminalStates = Caffeine.newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(statusTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        listenerContainer.addMessageListener(this, new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    public long getStatusTtlSeconds() {
+        return statusTtlSeconds;
+    }
+
+    /**
+     * 记录订单已进入队列（秒杀脚本之外的入队路径使用，例如分桶库存模式）
+     * @param operations 调用方的Redis操作，便于和入队命令放在同一个管道中
+     */
+    public void markQueued(RedisOperations<String, String> operations, Long orderId, Long userId) {
+        String key = ORDER_STATUS_KEY + orderId;
+        Map<String, String> fields = new HashMap<>(2);
+        fields.put("s", QUEUED);
+        fields.put("u", userId.toString());
+        operations.opsForHash().putAll(key, fields);
+        operations.expire(key, statusTtlSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 记录订单已落库
+     * @param orderIds 订单ID
+     */
+    public void markPersisted(Collection<Long> orderIds) {
+        update(orderIds, PERSISTED, null);
+    }
+
+    /**
+     * 记录订单处理失败
+     * @param orderIds 订单ID
+     * @param reason 失败原因
+     */
+    public void markFailed(Collection<Long> orderIds, String reason) {
+        update(orderIds, FAILED, reason);
+    }
+
+    /**
+     * 记录订单已取消
+     * @param orderIds 订单ID
+     * @param reason 取消原因
+     */
+    public void markCancelled(Collection<Long> orderIds, String reason) {
+        update(orderIds, CANCELLED, reason);
+    }
+
+    /**
+     * 用一个管道写入一批订单的状态，然后广播一条状态变化消息：状态:订单ID1,订单ID2,...
+     */
+    private void update(Collection<Long> orderIds, String state, String reason) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Object execute(RedisOperations operations) throws DataAccessException {
+                    for (Long orderId : orderIds) {
+                        String key = ORDER_STATUS_KEY + orderId;
+                        operations.opsForHash().put(key, "s", state);
+                        if (reason != null) {
+                            operations.opsForHash().put(key, "r", reason);
+                        }
+                        operations.expire(key, statusTtlSeconds, TimeUnit.SECONDS);
+                    }
+                    return null;
+                }
+            });
+            stringRedisTemplate.convertAndSend(ORDER_STATUS_CHANNEL, state + ":" + StrUtil.join(",", orderIds));
+        } catch (Exception e) {
+            // 状态只用于查询，写入失败不影响订单处理
+            log.warn("写入订单状态失败，state={}，orderIds={}", state, orderIds, e);
+        }
+    }
+
+    /**
+     * 查询订单状态，优先读取本地缓存的终态，其次读取Redis
+     * @param orderId 订单ID
+     * @return {状态, 用户ID, 失败原因}，订单不存在或已过期时返回null
+     */
+    public String[] getStatus(Long orderId) {
+        String[] cached = terminalStates.getIfPresent(orderId);
+        if (cached != null) {
+            return cached;
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(ORDER_STATUS_KEY + orderId, Arrays.asList("s", "u", "r"));
+        if (values.get(0) == null) {
+            return null;
+        }
+        String[] status = {(String) values.get(0), (String) values.get(1), (String) values.get(2)};
+        if (isTerminal(status[0])) {
+            terminalStates.put(orderId, status);
+        }
+        return status;
+    }
+
+    /**
+     * 查询订单状态，订单仍在队列中时最多等待timeoutMs毫秒，直到状态变化
+     * @param orderId 订单ID
+     * @param userId 当前用户ID，只能查询自己的订单
+     * @param timeoutMs 最长等待时间，0表示立即返回
+     * @return 异步结果
+     */
+    public DeferredResult<Result> queryStatus(Long orderId, Long userId, long timeoutMs) {
+        DeferredResult<Result> result = new DeferredResult<>(timeoutMs > 0 ? timeoutMs : null);
+        String[] status = getStatus(orderId);
+        if (status == null || !userId.toString().equals(status[1])) {
+            result.setResult(Result.fail("订单不存在"));
+            return result;
+        }
+        if (!QUEUED.equals(status[0]) || timeoutMs <= 0) {
+            result.setResult(toResult(status));
+            return result;
+        }
+        // 仍在队列中，注册等待者，超时后返回当前状态
+        Waiter waiter = new Waiter(orderId, result);
+        Set<Waiter> set = waiters.computeIfAbsent(orderId, k -> ConcurrentHashMap.newKeySet());
+        set.add(waiter);
+        result.onTimeout(() -> result.setResult(toResult(status)));
+        result.onCompletion(() -> removeWaiter(waiter));
+        // 注册之前状态可能已经变化，再检查一次
+        String[] latest = getStatus(orderId);
+        if (latest != null && !QUEUED.equals(latest[0])) {
+            result.setResult(toResult(latest));
+        }
+        return result;
+    }
+
+    /**
+     * 接收状态变化消息，唤醒等待这些订单的请求
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        for (String id : body.substring(index + 1).split(",")) {
+            Long orderId = Long.valueOf(id);
+            // 本地缓存的状态可能已经过时，下一次查询重新读取Redis
+            terminalStates.invalidate(orderId);
+            Set<Waiter> set = waiters.get(orderId);
+            if (set == null) {
+                continue;
+            }
+            String[] status = getStatus(orderId);
+            if (status == null) {
+                continue;
+            }
+            for (Waiter waiter : set) {
+                waiter.result.setResult(toResult(status));
+            }
+        }
+    }
+
+    /**
+     * 是否为不会再变化的终态
+     */
+    private static boolean isTerminal(String state) {
+        return FAILED.equals(state) || CANCELLED.equals(state);
+    }
+
+    private void removeWaiter(Waiter waiter) {
+        waiters.computeIfPresent(waiter.orderId, (k, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static Result toResult(String[] status) {
+        Map<String, String> data = new HashMap<>(2);
+        data.put("status", status[0]);
+        if (status[2] != null) {
+            data.put("reason", status[2]);
+        }
+        return Result.ok(data);
+    }
+
+    private static class Waiter {
+        private final Long orderId;
+        private final DeferredResult<Result> result;
+
+        Waiter(Long orderId, DeferredResult<Result> result) {
+            this.orderId = orderId;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订单消息队列的监控、裁剪与背压。
+ * 1.定时读取每个队列的长度、最早消息、消费者组的pending数量和各消费者的pending数量，通过Micrometer上报；
+ * 2.用 XTRIM MINID ~ 裁剪已确认的消息：边界取pending-list中最小的消息ID，没有pending消息时取消费者组最后投递的ID，
+ *   未投递和未确认的消息永远不会被裁剪；
+ * 3.队列积压（裁剪后的长度）或最早未确认消息的等待时间超过阈值时，将该队列标记为拥塞，秒杀请求直接返回排队已满；
+ *   积压回落到阈值的80%以下且等待时间恢复后解除拥塞。
+ * 采集失败时背压不会生效，失败次数以 seckill.order.stream.refresh.failures 指标上报，每个队列每分钟最多输出一条warn日志。
+ * XTRIM MINID 需要Redis 6.2及以上版本，低版本Redis请关闭 trim-enabled。
+ */
+@Slf4j
+@Component
+public class OrderStreamMonitor {
+
+    /**
+     * 同一队列采集失败时输出warn日志的最小间隔（毫秒）
+     */
+    private static final long FAILURE_LOG_INTERVAL = 60000L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final OrderConsumerPool orderConsumerPool;
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 是否裁剪已确认的消息
+     */
+    @Value("${hmdp.seckill.order.monitor.trim-enabled:true}")
+    private boolean trimEnabled;
+
+    /**
+     * 队列积压的消息数超过该值时开启背压，0表示不限制
+     */
+    @Value("${hmdp.seckill.order.monitor.max-backlog:50000}")
+    private long maxBacklog;
+
+    /**
+     * 最早未确认消息的等待时间（毫秒）超过该值时开启背压，0表示不限制
+     */
+    @Value("${hmdp.seckill.order.monitor.max-lag-ms:30000}")
+    private long maxLagMs;
+
+    /**
+     * 各个队列的最新统计
+     */
+    private final Map<String, StreamStats> stats = new ConcurrentHashMap<>();
+
+    private MultiGauge consumerPending;
+
+    public OrderStreamMonitor(StringRedisTemplate stringRedisTemplate, OrderConsumerPool orderConsumerPool,
+                              MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.orderConsumerPool = orderConsumerPool;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        for (String streamKey : orderConsumerPool.allStreams()) {
+            StreamStats s = new StreamStats();
+            stats.put(streamKey, s);
+            Gauge.builder("seckill.order.stream.backlog", s, x -> x.backlog)
+                    .tag("stream", streamKey).description("队列中未确认的消息数").register(meterRegistry);
+            Gauge.builder("seckill.order.stream.pending", s, x -> x.pending)
+                    .tag("stream", streamKey).description("已投递未确认的消息数").register(meterRegistry);
+            Gauge.builder("seckill.order.stream.lag", s, x -> x.lagMs)
+                    .tag("stream", streamKey).description("最早未确认消息的等待时间（毫秒）").register(meterRegistry);
+            Gauge.builder("seckill.order.stream.congested", s, x -> x.congested ? 1 : 0)
+                    .tag("stream", streamKey).description("是否处于背压状态").register(meterRegistry);
+            s.failures = Counter.builder("seckill.order.stream.refresh.failures")
+                    .tag("stream", streamKey).description("采集队列状态失败的次数").register(meterRegistry);
+        }
+        consumerPending = MultiGauge.builder("seckill.order.consumer.pending")
+                .description("各消费者已投递未确认的消息数").register(meterRegistry);
+    }
+
+    /**
+     * 队列是否拥塞，拥塞时不再接收新的秒杀订单
+     * @param streamKey 订单消息队列
+     */
+    public boolean isCongested(String streamKey) {
+        StreamStats s = stats.get(streamKey);
+        return s != null && s.congested;
+    }
+
+    /**
+     * 最早未确认消息的等待时间
+     * @param streamKey 订单消息队列
+     * @return 等待时间（毫秒），0表示没有未确认的消息，-1表示尚未采集
+     */
+    public long getLagMs(String streamKey) {
+        StreamStats s = stats.get(streamKey);
+        return s == null || s.refreshedAt == 0 ? -1 : s.lagMs;
+    }
+
+    /**
+     * 定时采集各个队列的状态，裁剪已确认的消息，并计算背压状态
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.monitor.interval-ms:1000}")
+    public void refresh() {
+        List<MultiGauge.Row<?>> rows = new ArrayList<>();
+        for (Map.Entry<String, StreamStats> entry : stats.entrySet()) {
+            String streamKey = entry.getKey();
+            StreamStats s = entry.getValue();
+            try {
+                refresh(streamKey, s, rows);
+            } catch (Exception e) {
+                // 保留上一次的统计，背压状态不再更新
+                onRefreshFailure(streamKey, s, e);
+            }
+        }
+        consumerPending.register(rows, true);
+    }
+
+    private void refresh(String streamKey, StreamStats s, List<MultiGauge.Row<?>> rows) {
+        // 1.消费者组的pending汇总 XPENDING stream.orders g1
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_ORDER_GROUP);
+        summary.getPendingMessagesPerConsumer().forEach((consumer, count) ->
+                rows.add(MultiGauge.Row.of(Tags.of("stream", streamKey, "consumer", consumer), count)));
+        String lastDeliveredId = lastDeliveredId(streamKey);
+        // 2.裁剪已确认的消息
+        if (trimEnabled) {
+            String boundary = summary.getTotalPendingMessages() > 0 ? summary.minMessageId() : lastDeliveredId;
+            if (boundary != null && !"0-0".equals(boundary)) {
+                trim(streamKey, boundary);
+            }
+        }
+        // 3.裁剪后的队列长度即积压量（近似裁剪会多保留少量已确认的消息）
+        long backlog = stringRedisTemplate.opsForStream().size(streamKey);
+        // 4.等待时间取最早的pending消息，没有pending消息时取第一条未投递的消息
+        String oldestId = summary.getTotalPendingMessages() > 0 ? summary.minMessageId() : firstUndeliveredId(streamKey, lastDeliveredId);
+        long lagMs = oldestId == null ? 0 : Math.max(0, System.currentTimeMillis() - RecordId.of(oldestId).getTimestamp());
+        s.backlog = backlog;
+        s.pending = summary.getTotalPendingMessages();
+        s.lagMs = lagMs;
+        s.refreshedAt = System.currentTimeMillis();
+        // 5.背压：超过阈值时开启，回落到阈值的80%以下时解除
+        boolean over = (maxBacklog > 0 && backlog > maxBacklog) || (maxLagMs > 0 && lagMs > maxLagMs);
+        boolean under = (maxBacklog <= 0 || backlog < maxBacklog * 0.8) && (maxLagMs <= 0 || lagMs < maxLagMs * 0.8);
+        if (!s.congested && over) {
+            s.congested = true;
+            log.warn("订单队列拥塞，开启背压，stream={}，积压={}，等待={}ms", streamKey, backlog, lagMs);
+        } else if (s.congested && under) {
+            s.congested = false;
+            log.info("订单队列恢复，解除背压，stream={}，积压={}，等待={}ms", streamKey, backlog, lagMs);
+        }
+    }
+
+    /**
+     * 记录采集失败：失败次数计入指标，warn日志按队列限速，其余失败只输出debug日志
+     */
+    private void onRefreshFailure(String streamKey, StreamStats s, Exception e) {
+        s.failures.increment();
+        long now = System.currentTimeMillis();
+        if (now - s.lastFailureLogAt >= FAILURE_LOG_INTERVAL) {
+            s.lastFailureLogAt = now;
+            log.warn("采集订单队列状态失败，背压不会生效，stream={}（XTRIM MINID需要Redis 6.2及以上版本，低版本请关闭trim-enabled）",
+                    streamKey, e);
+        } else {
+            log.debug("采集订单队列状态失败，stream={}", streamKey, e);
+        }
+    }
+
+    /**
+     * 消费者组最后投递的消息ID XINFO GROUPS stream.orders
+     */
+    private String lastDeliveredId(String streamKey) {
+        return stringRedisTemplate.opsForStream().groups(streamKey).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse(null);
+    }
+
+    /**
+     * 消费者组最后投递的消息之后的第一条消息 XRANGE stream.orders lastDeliveredId + COUNT 2，
+     * 不使用Redis 6.2才支持的开区间，跳过与最后投递的ID相同的那一条
+     */
+    private String firstUndeliveredId(String streamKey, String lastDeliveredId) {
+        Range<String> range = lastDeliveredId == null
+                ? Range.unbounded()
+                : Range.rightUnbounded(Range.Bound.inclusive(lastDeliveredId));
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(streamKey, range, RedisZSetCommands.Limit.limit().count(2));
+        if (records == null) {
+            return null;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            String id = record.getId().getValue();
+            if (!id.equals(lastDeliveredId)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * XTRIM stream.orders MINID ~ boundary，只删除ID小于边界的消息，~ 表示按宏节点近似裁剪，开销更小
+     */
+    private void trim(String streamKey, String boundary) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                streamKey.getBytes(StandardCharsets.UTF_8),
+                "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8),
+                boundary.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static class StreamStats {
+        private volatile long backlog;
+        private volatile long pending;
+        private volatile long lagMs;
+        private volatile boolean congested;
+        private volatile long refreshedAt;
+        private volatile long lastFailureLogAt;
+        private Counter failures;
+    }
+}
@@ -0,0 +1,262 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_TIMEOUT_KEY;
+
+/**
+ * 未支付订单的超时队列，分两层：
+ * 1.Redis有序集合 seckill:timeout 保存所有超时任务，分数为到期时间，成员为"订单ID:优惠券ID:用户ID:到期时间"；
+ * 2.每个节点定时认领lookahead时间内即将到期的任务，放入本地分层时间轮，到期时批量交给处理器。
+ * 认领时把任务的分数推迟到租约到期时间，处理完成后删除；节点宕机时租约到期，任务会被其他节点重新认领，
+ * 因此处理器必须是幂等的。
+ */
+@Slf4j
+@Component
+public class OrderTimeoutQueue {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisScriptRegistry redisScriptRegistry;
+
+    /**
+     * 是否开启未支付订单超时取消，默认关闭：没有支付接口把订单改为已支付之前，开启后所有订单都会被取消
+     */
+    @Value("${hmdp.seckill.order.timeout.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 订单创建后多久未支付则取消（毫秒）
+     */
+    @Value("${hmdp.seckill.order.timeout.pay-timeout-ms:900000}")
+    private long payTimeoutMs;
+
+    /**
+     * 每次认领多长时间内到期的任务（毫秒）
+     */
+    @Value("${hmdp.seckill.order.timeout.lookahead-ms:5000}")
+    private long lookaheadMs;
+
+    /**
+     * 认领间隔（毫秒），应小于lookahead-ms
+     */
+    @Value("${hmdp.seckill.order.timeout.poll-ms:1000}")
+    private long pollMs;
+
+    /**
+     * 认领的租约时长（毫秒），超过该时间仍未处理完成的任务会被其他节点重新认领
+     */
+    @Value("${hmdp.seckill.order.timeout.lease-ms:60000}")
+    private long leaseMs;
+
+    /**
+     * 每次认领以及每批处理的最大任务数
+     */
+    @Value("${hmdp.seckill.order.timeout.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 处理到期任务的线程数
+     */
+    @Value("${hmdp.seckill.order.timeout.worker-threads:2}")
+    private int workerThreads;
+
+    /**
+     * 本地时间轮第一层每格的时长（毫秒）和每层格数
+     */
+    @Value("${hmdp.seckill.order.timeout.tick-ms:10}")
+    private long tickMs;
+    @Value("${hmdp.seckill.order.timeout.wheel-size:64}")
+    private int wheelSize;
+
+    /**
+     * 时间轮中到期、等待处理的任务
+     */
+    private final BlockingQueue<Task> expired = new LinkedBlockingQueue<>();
+
+    private TimingWheel<Task> wheel;
+
+    private ScheduledExecutorService poller;
+
+    private ExecutorService workers;
+
+    private volatile boolean running;
+
+    public OrderTimeoutQueue(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 启动超时队列
+     * @param handler 到期任务的处理器，每次处理一批，处理成功后需要调用complete删除任务
+     */
+    public synchronized void start(Consumer<List<Task>> handler) {
+        if (!enabled || running) {
+            return;
+        }
+        running = true;
+        wheel = new TimingWheel<>(tickMs, wheelSize, expired::offer, "order-timeout-wheel");
+        wheel.start();
+        poller = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "order-timeout-poller"));
+        poller.scheduleWithFixedDelay(this::claim, 0, pollMs, TimeUnit.MILLISECONDS);
+        AtomicInteger index = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, r -> new Thread(r, "order-timeout-" + index.getAndIncrement()));
+        for (int i = 0; i < workerThreads; i++) {
+            workers.submit(() -> work(handler));
+        }
+        log.info("订单超时队列已启动，超时时间={}ms", payTimeoutMs);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        poller.shutdownNow();
+        workers.shutdownNow();
+        wheel.stop();
+    }
+
+    /**
+     * 为新创建的订单登记超时任务，一批订单用一个管道写入
+     * @param orders 已落库的订单
+     */
+    public void schedule(Collection<VoucherOrder> orders) {
+        if (!enabled || orders.isEmpty()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + payTimeoutMs;
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) throws DataAccessException {
+                for (VoucherOrder order : orders) {
+                    Task task = new Task(order.getId(), order.getVoucherId(), order.getUserId(), deadline);
+                    operations.opsForZSet().add(SECKILL_ORDER_TIMEOUT_KEY, task.toString(), deadline);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 删除已处理完成的任务
+     */
+    public void complete(Collection<Task> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_TIMEOUT_KEY,
+                tasks.stream().map(Task::toString).toArray());
+    }
+
+    /**
+     * 认领即将到期的任务放入本地时间轮，一次认领不完时继续认领
+     */
+    @SuppressWarnings("unchecked")
+    private void claim() {
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                List<String> members = redisScriptRegistry.execute("order_timeout_claim", List.class,
+                        Collections.singletonList(SECKILL_ORDER_TIMEOUT_KEY),
+                        String.valueOf(now + lookaheadMs), String.valueOf(now + leaseMs), String.valueOf(batchSize));
+                if (members == null || members.isEmpty()) {
+                    return;
+                }
+                for (String member : members) {
+                    Task task = Task.parse(member);
+                    wheel.add(task.deadline, task);
+                }
+                if (members.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("认领超时任务异常", e);
+        }
+    }
+
+    /**
+     * 批量取出到期的任务交给处理器，处理失败的任务留在有序集合中，租约到期后重新认领
+     */
+    private void work(Consumer<List<Task>> handler) {
+        List<Task> batch = new ArrayList<>(batchSize);
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                Task first = expired.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                expired.drainTo(batch, batchSize - 1);
+                handler.accept(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("处理超时订单异常，数量={}", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 超时任务
+     */
+    public static class Task {
+        private final long orderId;
+        private final long voucherId;
+        private final long userId;
+        private final long deadline;
+
+        Task(long orderId, long voucherId, long userId, long deadline) {
+            this.orderId = orderId;
+            this.voucherId = voucherId;
+            this.userId = userId;
+            this.deadline = deadline;
+        }
+
+        static Task parse(String member) {
+            String[] parts = member.split(":");
+            return new Task(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                    Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+        }
+
+        public long getOrderId() {
+            return orderId;
+        }
+
+        public long getVoucherId() {
+            return voucherId;
+        }
+
+        public long getUserId() {
+            return userId;
+        }
+
+        @Override
+        public String toString() {
+            return orderId + ":" + voucherId + ":" + userId + ":" + deadline;
+        }
+    }
+}
@@ -10,19 +10,46 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_CHANNEL = "bloom:sync";
 
     public  static final String CACHE_SHOP_TYPE_KEY = "cache:shopType:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
 
     public static final String LOCK_ORDER_KEY = "lock:order:";
+    public static final String LOCK_PREHEAT_KEY = "lock:preheat:";
+    public static final String LOCK_RECONCILE_KEY = "lock:reconcile:";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+    public static final String LOCK_FLIGHT_KEY = "lock:flight:";
+    public static final String LOCK_WARMUP_KEY = "lock:warmup";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_REBUILD_KEY = "lock:rebuild:";
+    public static final Long LOCK_REBUILD_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_ADMISSION_LIMITS_KEY = "seckill:admission:limits";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_TIMEOUT_KEY = "seckill:timeout";
+    public static final String SECKILL_CONSUMER_NODES_KEY = "stream.orders:nodes";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String ID_WORKER_LEASE_KEY = "icr:worker:";
 
 
     public static final String FOLLOW_KEY = "follow:";
@@ -1,12 +1,23 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -16,29 +27,258 @@ public class RedisIdWorker {
     // 序列号的位数
     private static final long COUNT_BITS = 32L;
 
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 号段模式下异步预取下一个号段的线程
+     */
+    private static final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private StringRedisTemplate stringRedisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    private RedisScriptRegistry redisScriptRegistry;
+
+    /**
+     * ID生成模式：incr 每次调用都执行一次INCR；segment 一次INCRBY预取一个号段，在本地分配；
+     * snowflake 从Redis租用workerId，在本地按Snowflake布局生成ID
+     */
+    @Value("${hmdp.id-worker.mode:incr}")
+    private String mode = "incr";
+
+    /**
+     * 号段模式的初始步长，以及步长自适应调整的上下限
+     */
+    @Value("${hmdp.id-worker.segment.step:1000}")
+    private long initialStep = 1000;
+    @Value("${hmdp.id-worker.segment.min-step:100}")
+    private long minStep = 100;
+    @Value("${hmdp.id-worker.segment.max-step:100000}")
+    private long maxStep = 100000;
+
+    /**
+     * 号段模式下期望一个号段的使用时长（毫秒），消耗得更快时步长翻倍，更慢时步长减半
+     */
+    @Value("${hmdp.id-worker.segment.target-ms:10000}")
+    private long targetMs = 10000;
+
+    /**
+     * 号段剩余比例低于该值时异步预取下一个号段
+     */
+    @Value("${hmdp.id-worker.segment.low-water:0.2}")
+    private double lowWater = 0.2;
+
+    /**
+     * Snowflake模式下workerId租约的时长（秒）
+     */
+    @Value("${hmdp.id-worker.snowflake.lease-seconds:30}")
+    private long leaseSeconds = 30;
+
+    private SnowflakeIdGenerator snowflake;
+
+    /**
+     * 各个业务前缀的号段缓冲
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    /**
+     * 缓存当天的日期字符串，避免每次调用都格式化日期
+     */
+    private volatile CachedDate cachedDate = new CachedDate(-1, null);
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        if ("snowflake".equals(mode)) {
+            snowflake = new SnowflakeIdGenerator(stringRedisTemplate, redisScriptRegistry, leaseSeconds);
+            snowflake.start();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (snowflake != null) {
+            snowflake.stop();
+        }
     }
+
     /**
      * 生成下一个ID
      * @param keyPrefix 键前缀，用于区分不同的ID序列
      * @return 生成的ID，是一个长整型数字
      */
     public long nextId(String keyPrefix) {
+        // Snowflake模式下ID在本地生成，全局唯一，不再区分业务前缀
+        if (snowflake != null) {
+            return snowflake.nextId();
+        }
 
-        // 1.生成时间戳
-        long currentTime = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
-        long timestamp = currentTime - BEGIN_TIMESTAMP;
+        // 1.生成时间戳（与原实现一致：以本地时间按UTC折算的秒数）
+        long localSeconds = localEpochSecond();
+        long timestamp = localSeconds - BEGIN_TIMESTAMP;
         // 2.生成序列号
         // 2.1 获取当前日期 精确到天
-        String date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2 使用Redis的自增操作获取当前日期内的序列号，保证唯一性
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String date = dateOf(localSeconds / SECONDS_PER_DAY);
+        // 2.2 获取当前日期内的序列号，保证唯一性
+        long count = "segment".equals(mode)
+                ? nextSegmentCount(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
         // 3.将时间戳和序列号拼接成一个长整型数字，返回
         return timestamp << COUNT_BITS | count;
     }
 
+    /**
+     * 当前本地时间按UTC折算的秒数，等价于 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)
+     */
+    private static long localEpochSecond() {
+        long now = System.currentTimeMillis();
+        return Math.floorDiv(now + TimeZone.getDefault().getOffset(now), 1000L);
+    }
+
+    /**
+     * 获取日期字符串 yyyy:MM:dd，同一天内只格式化一次
+     */
+    private String dateOf(long epochDay) {
+        CachedDate cached = cachedDate;
+        if (cached.epochDay != epochDay) {
+            cached = new CachedDate(epochDay, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+            cachedDate = cached;
+        }
+        return cached.date;
+    }
+
+    /**
+     * 号段模式：从本地号段中无锁分配序列号，号段耗尽时切换到预取的下一个号段
+     */
+    private long nextSegmentCount(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer(initialStep));
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment == null || !segment.date.equals(date)) {
+                // 首次使用或者跨天，同步加载当天的号段
+                buffer.switchTo(keyPrefix, date, segment);
+                continue;
+            }
+            long count = segment.cursor.getAndIncrement();
+            if (count <= segment.max) {
+                // 剩余数量低于水位线时异步预取下一个号段
+                if (segment.max - count < segment.size * lowWater && buffer.next == null
+                        && buffer.loading.compareAndSet(false, true)) {
+                    SEGMENT_LOADER.submit(() -> buffer.prefetch(keyPrefix, date));
+                }
+                return count;
+            }
+            // 号段已用完，切换到下一个号段
+            buffer.switchTo(keyPrefix, date, segment);
+        }
+    }
+
+    /**
+     * 使用INCRBY向Redis申请一个号段 (end - step, end]
+     */
+    private Segment allocate(String keyPrefix, String date, long step) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+        return new Segment(date, end - step + 1, end);
+    }
 
+    private static class CachedDate {
+        private final long epochDay;
+        private final String date;
+
+        CachedDate(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    /**
+     * 号段：[cursor, max] 之间的序列号可以在本地直接分配
+     */
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long max;
+        private final long size;
+
+        Segment(String date, long min, long max) {
+            this.date = date;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.size = max - min + 1;
+        }
+    }
+
+    /**
+     * 双号段缓冲：当前号段用于分配，下一个号段在当前号段到达水位线时异步预取
+     */
+    private class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+        private volatile long step;
+        private volatile long lastAllocateTime;
+
+        SegmentBuffer(long step) {
+            this.step = step;
+        }
+
+        /**
+         * 异步预取下一个号段
+         */
+        void prefetch(String keyPrefix, String date) {
+            try {
+                Segment segment = allocate(keyPrefix, date, adjustStep());
+                synchronized (this) {
+                    next = segment;
+                }
+            } catch (Exception e) {
+                log.error("预取号段失败，keyPrefix={}", keyPrefix, e);
+            } finally {
+                loading.set(false);
+            }
+        }
+
+        /**
+         * 当前号段用完或跨天时切换号段，只有一个线程会真正执行切换
+         * @param exhausted 调用方看到的已用完（或已过期）的号段
+         */
+        synchronized void switchTo(String keyPrefix, String date, Segment exhausted) {
+            if (current != exhausted) {
+                // 其他线程已经完成了切换
+                return;
+            }
+            Segment candidate = next;
+            next = null;
+            if (candidate == null || !candidate.date.equals(date)) {
+                candidate = allocate(keyPrefix, date, adjustStep());
+            }
+            current = candidate;
+        }
+
+        /**
+         * 根据两次申请号段的时间间隔自适应调整步长
+         */
+        private synchronized long adjustStep() {
+            long now = System.currentTimeMillis();
+            if (lastAllocateTime > 0) {
+                long elapsed = now - lastAllocateTime;
+                if (elapsed < targetMs) {
+                    step = Math.min(step * 2, maxStep);
+                } else if (elapsed > targetMs * 2) {
+                    step = Math.max(step / 2, minStep);
+                }
+            }
+            lastAllocateTime = now;
+            return step;
+        }
+    }
 }
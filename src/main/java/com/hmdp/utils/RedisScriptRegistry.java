@@ -0,0 +1,310 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.event.connection.ConnectionActivatedEvent;
+import io.lettuce.core.resource.ClientResources;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import reactor.core.Disposable;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lua脚本注册中心，统一管理类路径下的 *.lua 脚本，脚本名为去掉 .lua 后缀的文件名：
+ * 1.启动时读取全部脚本并在本地计算SHA1，用 SCRIPT LOAD 预加载到Redis，并校验Redis返回的SHA1与本地一致；
+ * 2.监听Lettuce的连接激活事件（Redis重启、主从切换后重新建立连接），并定时用 SCRIPT EXISTS 检查，
+ *   脚本缺失时重新预加载，保证 EVALSHA 总能命中，不会因为 NOSCRIPT 再多一次携带脚本全文的 EVAL；
+ * 3.支持在一个管道中批量 EVALSHA 同一个脚本，管道中出现 NOSCRIPT 时重新预加载后整批重试；
+ * 4.每个脚本的执行耗时以 redis.script 指标暴露，按脚本名和执行结果区分，批量执行按整个管道计时。
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+
+    /**
+     * 连接激活后延迟多久重新预加载（毫秒），连接池一次建立多个连接时只加载一次
+     */
+    private static final long RELOAD_DELAY_MS = 500L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final MeterRegistry meterRegistry;
+
+    private final ObjectProvider<ClientResources> clientResources;
+
+    /**
+     * 脚本名 -> 脚本
+     */
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean reloadScheduled = new AtomicBoolean();
+
+    private ScheduledExecutorService reloadExecutor;
+
+    private Disposable subscription;
+
+    public RedisScriptRegistry(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                               ObjectProvider<ClientResources> clientResources) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.clientResources = clientResources;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        // 1.读取类路径下的全部脚本
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources("classpath:*.lua")) {
+            String filename = resource.getFilename();
+            register(filename.substring(0, filename.length() - ".lua".length()), resource);
+        }
+        // 2.预加载到Redis，Redis暂时不可用时由定时检查补上
+        try {
+            loadAll();
+        } catch (DataAccessException e) {
+            log.warn("预加载Lua脚本失败，等待下次检查时重试", e);
+        }
+        // 3.连接重新建立后重新预加载
+        reloadExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "redis-script-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ClientResources resources = clientResources.getIfAvailable();
+        if (resources != null) {
+            subscription = resources.eventBus().get()
+                    .filter(event -> event instanceof ConnectionActivatedEvent)
+                    .subscribe(event -> scheduleReload());
+        }
+        log.info("已注册Lua脚本：{}", scripts.keySet());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 执行脚本 EVALSHA
+     * @param name 脚本名
+     * @param resultType 返回值类型
+     * @param keys 脚本访问的key
+     * @param args 脚本参数
+     * @return 脚本返回值
+     */
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, Object... args) {
+        Script script = script(name);
+        long begin = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = stringRedisTemplate.execute(script.typed(resultType), keys, args);
+            success = true;
+            return result;
+        } finally {
+            script.record(System.nanoTime() - begin, success);
+        }
+    }
+
+    /**
+     * 在一个管道中批量执行同一个脚本
+     * @param name 脚本名
+     * @param resultType 返回值类型
+     * @param keys 每次调用访问的key
+     * @param args 每次调用的参数，与keys一一对应
+     * @return 每次调用的返回值，与keys一一对应
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> executeBatch(String name, Class<T> resultType, List<List<String>> keys, List<Object[]> args) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Script script = script(name);
+        RedisScript<T> redisScript = script.typed(resultType);
+        long begin = System.nanoTime();
+        boolean success = false;
+        try {
+            List<Object> results;
+            try {
+                results = pipeline(redisScript, keys, args);
+            } catch (RuntimeException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                // 管道中的EVALSHA不会回退到EVAL，脚本缺失时这一批调用都没有执行，重新预加载后整批重试
+                log.warn("批量执行Lua脚本时脚本缺失，重新预加载后重试，script={}", name);
+                loadAll();
+                results = pipeline(redisScript, keys, args);
+            }
+            success = true;
+            return (List<T>) results;
+        } finally {
+            script.record(System.nanoTime() - begin, success);
+        }
+    }
+
+    /**
+     * 定时检查脚本是否仍在Redis中 SCRIPT EXISTS sha1 sha2 ...，有缺失时重新预加载
+     */
+    @Scheduled(fixedDelayString = "${hmdp.redis.script.verify-interval-ms:30000}")
+    public void verify() {
+        List<Script> list = new ArrayList<>(scripts.values());
+        if (list.isEmpty()) {
+            return;
+        }
+        try {
+            List<Boolean> exists = stringRedisTemplate.execute((RedisCallback<List<Boolean>>) connection ->
+                    connection.scriptingCommands().scriptExists(list.stream().map(s -> s.sha1).toArray(String[]::new)));
+            if (exists != null && exists.contains(Boolean.FALSE)) {
+                log.warn("Redis中的Lua脚本缺失，重新预加载");
+                loadAll();
+            }
+        } catch (DataAccessException e) {
+            log.warn("检查Lua脚本失败", e);
+        }
+    }
+
+    /**
+     * SCRIPT LOAD 全部脚本，并校验Redis返回的SHA1
+     */
+    private void loadAll() {
+        stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+            for (Script script : scripts.values()) {
+                String sha1 = connection.scriptingCommands().scriptLoad(script.source.getBytes(StandardCharsets.UTF_8));
+                if (!script.sha1.equals(sha1)) {
+                    throw new IllegalStateException("Lua脚本" + script.name + "的SHA1不一致，本地=" + script.sha1 + "，Redis=" + sha1);
+                }
+            }
+            return null;
+        });
+        log.debug("已预加载Lua脚本，数量={}", scripts.size());
+    }
+
+    private void scheduleReload() {
+        if (!reloadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        reloadExecutor.schedule(() -> {
+            reloadScheduled.set(false);
+            try {
+                loadAll();
+            } catch (Exception e) {
+                log.warn("重新预加载Lua脚本失败，等待下次检查时重试", e);
+            }
+        }, RELOAD_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<Object> pipeline(RedisScript<T> script, List<List<String>> keys, List<Object[]> args) {
+        return stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations operations) throws DataAccessException {
+                for (int i = 0; i < keys.size(); i++) {
+                    operations.execute(script, keys.get(i), args.get(i));
+                }
+                return null;
+            }
+        });
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 查找脚本，启动时没有扫描到的脚本在第一次使用时注册并预加载
+     */
+    private Script script(String name) {
+        Script script = scripts.get(name);
+        if (script != null) {
+            return script;
+        }
+        ClassPathResource resource = new ClassPathResource(name + ".lua");
+        if (!resource.exists()) {
+            throw new IllegalArgumentException("Lua脚本不存在：" + name);
+        }
+        Script registered = register(name, resource);
+        stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(registered.source.getBytes(StandardCharsets.UTF_8)));
+        return registered;
+    }
+
+    private Script register(String name, Resource resource) {
+        String source;
+        try (InputStream in = resource.getInputStream()) {
+            source = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("读取Lua脚本失败：" + name, e);
+        }
+        return scripts.computeIfAbsent(name, k -> new Script(name, source));
+    }
+
+    private class Script {
+        private final String name;
+        private final String source;
+        private final String sha1;
+        private final Timer success;
+        private final Timer failure;
+
+        /**
+         * 返回值类型 -> 脚本，同一个脚本一般只有一种返回值类型
+         */
+        private final Map<Class<?>, RedisScript<?>> typed = new ConcurrentHashMap<>(2);
+
+        Script(String name, String source) {
+            this.name = name;
+            this.source = source;
+            this.sha1 = RedisScript.of(source).getSha1();
+            this.success = timer("success");
+            this.failure = timer("error");
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> RedisScript<T> typed(Class<T> resultType) {
+            return (RedisScript<T>) typed.computeIfAbsent(resultType, type -> RedisScript.of(source, resultType));
+        }
+
+        void record(long nanos, boolean ok) {
+            (ok ? success : failure).record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        private Timer timer(String outcome) {
+            return Timer.builder("redis.script")
+                    .tag("script", name)
+                    .tag("outcome", outcome)
+                    .description("Lua脚本执行耗时")
+                    .register(meterRegistry);
+        }
+    }
+}
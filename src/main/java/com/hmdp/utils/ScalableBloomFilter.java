@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 可扩展布隆过滤器的本地副本。
+ * 由多层位图组成：第i层容量为 initialCapacity × 2^i，误判率为 fpp × 0.5^(i+1)，各层误判率之和不超过fpp；
+ * 元素总数超过已有各层容量之和时写入新的一层，查询时任意一层命中即认为可能存在。
+ * 位序与Redis位图一致（第n位是第n/8个字节从高位数的第n%8位），可以直接用Redis GET返回的字节初始化，
+ * 也可以直接把本地构建好的字节写入Redis。
+ */
+public class ScalableBloomFilter {
+
+    private final long initialCapacity;
+
+    private final double fpp;
+
+    private final CopyOnWriteArrayList<Layer> layers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param initialCapacity 第一层的容量
+     * @param fpp 整体误判率
+     */
+    public ScalableBloomFilter(long initialCapacity, double fpp) {
+        this.initialCapacity = Math.max(1, initialCapacity);
+        this.fpp = fpp;
+    }
+
+    public long getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    public double getFpp() {
+        return fpp;
+    }
+
+    /**
+     * @return 已创建的层数
+     */
+    public int layerCount() {
+        return layers.size();
+    }
+
+    /**
+     * 第count个元素应当写入的层
+     * @param count 元素序号，从1开始
+     */
+    public int layerOf(long count) {
+        int layer = 0;
+        long total = initialCapacity;
+        while (total < count) {
+            layer++;
+            total += initialCapacity << layer;
+        }
+        return layer;
+    }
+
+    /**
+     * 判断元素是否可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(long id) {
+        long[] hash = hash(id);
+        for (Layer layer : layers) {
+            if (layer.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 将元素写入指定的层
+     */
+    public void put(int layer, long id) {
+        layer(layer).put(hash(id));
+    }
+
+    /**
+     * 元素在指定层中对应的位
+     */
+    public long[] offsets(int layer, long id) {
+        return layer(layer).offsets(hash(id));
+    }
+
+    /**
+     * 用Redis位图的内容替换指定层，Redis中的位图可能比本层短（末尾的位没有设置过）
+     */
+    public void load(int layer, byte[] bytes) {
+        layer(layer).load(bytes);
+    }
+
+    /**
+     * @return 指定层的位图，与Redis位图的格式相同
+     */
+    public byte[] bytes(int layer) {
+        return layer(layer).bits;
+    }
+
+    private Layer layer(int index) {
+        while (layers.size() <= index) {
+            synchronized (layers) {
+                if (layers.size() <= index) {
+                    int i = layers.size();
+                    layers.add(new Layer(initialCapacity << i, fpp * Math.pow(0.5, i + 1)));
+                }
+            }
+        }
+        return layers.get(index);
+    }
+
+    private static long[] hash(long id) {
+        return MurmurHash.hash128(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class Layer {
+        /**
+         * 位数
+         */
+        private final long size;
+        /**
+         * 哈希函数个数
+         */
+        private final int hashes;
+        private volatile byte[] bits;
+
+        Layer(long capacity, double fpp) {
+            long m = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            // Redis位图最大为2^32位，本地用字节数组保存，不超过int范围
+            this.size = Math.min(Math.max(m, 8), (long) Integer.MAX_VALUE);
+            this.hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+            this.bits = new byte[(int) ((size + 7) / 8)];
+        }
+
+        /**
+         * 双重哈希 h1 + i × h2 生成各个位置
+         */
+        long[] offsets(long[] hash) {
+            long[] offsets = new long[hashes];
+            long combined = hash[0];
+            for (int i = 0; i < hashes; i++) {
+                offsets[i] = (combined & Long.MAX_VALUE) % size;
+                combined += hash[1];
+            }
+            return offsets;
+        }
+
+        boolean contains(long[] hash) {
+            byte[] b = bits;
+            for (long offset : offsets(hash)) {
+                if ((b[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        synchronized void put(long[] hash) {
+            for (long offset : offsets(hash)) {
+                bits[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+
+        synchronized void load(byte[] bytes) {
+            byte[] b = new byte[bits.length];
+            if (bytes != null) {
+                System.arraycopy(bytes, 0, b, 0, Math.min(bytes.length, b.length));
+            }
+            bits = b;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀准入控制，在执行秒杀脚本之前按优惠券限流：
+ * 1.本地令牌桶：每个优惠券一个，速率 = max(最小速率, 剩余库存 × 本地系数)，剩余库存为0时直接拒绝；
+ * 2.全局令牌桶：基于Redis的令牌桶，速率 = max(最小速率, 剩余库存 × 全局系数)，限制整个集群的准入量；
+ * 3.单个优惠券的速率可以通过Redis哈希 seckill:admission:limits 的 voucherId 字段覆盖，运行时即可调整。
+ * 剩余库存和覆盖配置每秒最多刷新一次。准入结果以 seckill.admission 指标暴露。
+ * 限流器按请求路径中的优惠券ID创建，最多保留 MAX_LIMITERS 个，一段时间没有访问后回收，任意ID的请求不会让内存无限增长。
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    /**
+     * 剩余库存和覆盖配置的刷新间隔（毫秒）
+     */
+    private static final long REFRESH_INTERVAL = 1000L;
+
+    /**
+     * 最多保留的限流器个数
+     */
+    private static final long MAX_LIMITERS = 10000L;
+
+    /**
+     * 限流器多久（分钟）没有访问后回收
+     */
+    private static final long LIMITER_IDLE_MINUTES = 10L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisScriptRegistry redisScriptRegistry;
+
+    private final SeckillStockShards seckillStockShards;
+
+    private final SoldOutCache soldOutCache;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 本地令牌桶每秒放行的请求数与剩余库存的比例
+     */
+    @Value("${hmdp.seckill.admission.local-factor:2.0}")
+    private double localFactor;
+
+    /**
+     * 全局令牌桶每秒放行的请求数与剩余库存的比例，小于等于0时不启用全局限流
+     */
+    @Value("${hmdp.seckill.admission.global-factor:1.0}")
+    private double globalFactor;
+
+    /**
+     * 每秒至少放行的请求数，保证库存很少时仍有请求能进入
+     */
+    @Value("${hmdp.seckill.admission.min-rate:10}")
+    private double minRate;
+
+    private final Cache<Long, VoucherLimiter> limiters = Caffeine.newBuilder()
+            .maximumSize(MAX_LIMITERS)
+            .expireAfterAccess(LIMITER_IDLE_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    private final Counter accepted;
+    private final Counter rejectedSoldOut;
+    private final Counter rejectedLocal;
+    private final Counter rejectedGlobal;
+
+    public SeckillAdmission(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry,
+                            SeckillStockShards seckillStockShards, SoldOutCache soldOutCache, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.seckillStockShards = seckillStockShards;
+        this.soldOutCache = soldOutCache;
+        this.accepted = meterRegistry.counter("seckill.admission", "result", "accepted");
+        this.rejectedSoldOut = meterRegistry.counter("seckill.admission", "result", "sold_out");
+        this.rejectedLocal = meterRegistry.counter("seckill.admission", "result", "rejected_local");
+        this.rejectedGlobal = meterRegistry.counter("seckill.admission", "result", "rejected_global");
+    }
+
+    /**
+     * 尝试获取秒杀准入许可
+     * @param voucherId 优惠券ID
+     * @return true表示放行，false表示库存不足或请求过多，应直接拒绝
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        // 已售罄的请求交给秒杀服务在本地直接拒绝，不再占用令牌
+        if (soldOutCache.isSoldOut(voucherId)) {
+            rejectedSoldOut.increment();
+            return true;
+        }
+        VoucherLimiter limiter = limiters.get(voucherId, VoucherLimiter::new);
+        limiter.refreshIfNeeded();
+        if (limiter.remainingStock == 0) {
+            rejectedSoldOut.increment();
+            return false;
+        }
+        // 1.本地令牌桶
+        if (!limiter.tryAcquireLocal()) {
+            rejectedLocal.increment();
+            return false;
+        }
+        // 2.全局令牌桶
+        if (globalFactor > 0 && !tryAcquireGlobal(voucherId, limiter.globalRate)) {
+            rejectedGlobal.increment();
+            return false;
+        }
+        accepted.increment();
+        return true;
+    }
+
+    private boolean tryAcquireGlobal(Long voucherId, double rate) {
+        try {
+            Long allowed = redisScriptRegistry.execute(
+                    "seckill_limit", Long.class,
+                    Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    String.valueOf(rate), String.valueOf(rate)
+            );
+            return allowed != null && allowed == 1L;
+        } catch (Exception e) {
+            // 全局限流不可用时只依赖本地限流
+            log.warn("全局限流异常，voucherId={}", voucherId, e);
+            return true;
+        }
+    }
+
+    /**
+     * 查询剩余库存，分桶的优惠券累加所有桶的库存
+     * @return 剩余库存，未预热时返回-1
+     */
+    private long queryRemainingStock(Long voucherId) {
+        int shards = seckillStockShards.shardsOf(voucherId);
+        List<String> keys = new ArrayList<>();
+        if (shards > 1) {
+            for (int i = 0; i < shards; i++) {
+                keys.add(SeckillStockShards.stockKey(voucherId, i));
+            }
+        } else {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long stock = -1;
+        if (values != null) {
+            for (String value : values) {
+                if (value != null) {
+                    stock = Math.max(stock, 0) + Math.max(Long.parseLong(value), 0);
+                }
+            }
+        }
+        return stock;
+    }
+
+    /**
+     * 单个优惠券的限流器
+     */
+    private class VoucherLimiter {
+        private final Long voucherId;
+        private volatile long lastRefresh;
+        private volatile long remainingStock = -1;
+        private volatile double localRate;
+        private volatile double globalRate;
+
+        // 本地令牌桶状态，首次使用时令牌桶是满的
+        private double tokens = -1;
+        private long lastRefillNanos = System.nanoTime();
+
+        VoucherLimiter(Long voucherId) {
+            this.voucherId = voucherId;
+        }
+
+        /**
+         * 每秒最多刷新一次剩余库存和速率覆盖配置
+         */
+        void refreshIfNeeded() {
+            long now = System.currentTimeMillis();
+            if (now - lastRefresh < REFRESH_INTERVAL) {
+                return;
+            }
+            synchronized (this) {
+                if (now - lastRefresh < REFRESH_INTERVAL) {
+                    return;
+                }
+                lastRefresh = now;
+                try {
+                    long stock = queryRemainingStock(voucherId);
+                    Object override = stringRedisTemplate.opsForHash().get(SECKILL_ADMISSION_LIMITS_KEY, voucherId.toString());
+                    remainingStock = stock;
+                    if (override != null) {
+                        localRate = globalRate = Double.parseDouble(override.toString());
+                    } else {
+                        // 未预热时库存未知，按最小速率放行，由秒杀脚本给出准确结果
+                        long base = Math.max(stock, 0);
+                        localRate = Math.max(minRate, base * localFactor);
+                        globalRate = Math.max(minRate, base * globalFactor);
+                    }
+                } catch (Exception e) {
+                    log.warn("刷新秒杀准入配置失败，voucherId={}", voucherId, e);
+                }
+            }
+        }
+
+        /**
+         * 本地令牌桶，容量为1秒的令牌数
+         */
+        synchronized boolean tryAcquireLocal() {
+            long now = System.nanoTime();
+            double capacity = Math.max(localRate, 1);
+            tokens = tokens < 0 ? capacity : Math.min(capacity, tokens + (now - lastRefillNanos) / 1e9 * localRate);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
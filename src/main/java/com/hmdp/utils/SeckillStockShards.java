@@ -0,0 +1,242 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分桶。
+ * 热点秒杀券的库存被拆分到K个子桶中，每个子桶的库存key和订单key使用独立的hash tag，
+ * 在Redis集群中会落到不同的分片上，单个优惠券的吞吐量随分片数增长。
+ * 1.用户按ID哈希路由到固定的"本桶"，一人一单只需要检查本桶的订单集合；
+ * 2.本桶库存耗尽时，依次到兄弟桶扣减库存；
+ * 3.所有桶都没有库存时，释放用户在本桶的占位并返回库存不足。
+ * 每个脚本只访问同一个hash tag下的key，订单消息由Java端写入消息队列；
+ * 扣减库存之后、消息入队之前出现异常时，退回扣减的库存并释放本桶中的占位。
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+
+    /**
+     * 本地缓存的分桶数的有效期（毫秒）
+     */
+    private static final long SHARDS_CACHE_TTL = 10000L;
+
+    /**
+     * 本地空桶记录的有效期（毫秒），其他节点取消订单或对账补回库存时只清除自己的记录，
+     * 过期后本节点重新到该桶扣减，不会一直跳过已经补回库存的桶
+     */
+    private static final long EMPTY_BUCKET_TTL = 1000L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisScriptRegistry redisScriptRegistry;
+
+    private final OrderStatusTracker orderStatusTracker;
+
+    /**
+     * 新增秒杀券时拆分的库存桶数，小于等于1表示不分桶
+     */
+    @Value("${hmdp.seckill.stock-shards:0}")
+    private int stockShards;
+
+    /**
+     * 优惠券ID -> 分桶数，优惠券ID来自请求参数，限制数量避免被随意的ID撑大
+     */
+    private final Cache<Long, Integer> shardsCache = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(SHARDS_CACHE_TTL, TimeUnit.MILLISECONDS)
+            .build();
+
+    /**
+     * 本节点已知库存耗尽的桶，避免重复到空桶扣减
+     */
+    private final Cache<String, Boolean> emptyBuckets = Caffeine.newBuilder()
+            .expireAfterWrite(EMPTY_BUCKET_TTL, TimeUnit.MILLISECONDS)
+            .build();
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry,
+                              OrderStatusTracker orderStatusTracker) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.orderStatusTracker = orderStatusTracker;
+    }
+
+    /**
+     * @return 新增秒杀券时是否开启库存分桶
+     */
+    public boolean isEnabled() {
+        return stockShards > 1;
+    }
+
+    /**
+     * @return 新增秒杀券时拆分的桶数
+     */
+    public int getStockShards() {
+        return stockShards;
+    }
+
+    /**
+     * 将秒杀库存拆分到各个桶中，并记录该优惠券的分桶数；已经存在的桶不覆盖，避免覆盖正在扣减的库存
+     * @param voucherId 优惠券ID
+     * @param stock 总库存
+     * @param k 桶数
+     */
+    public void split(Long voucherId, int stock, int k) {
+        for (int i = 0; i < k; i++) {
+            // 余数分给前面的桶
+            int share = stock / k + (i < stock % k ? 1 : 0);
+            stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, i), String.valueOf(share));
+            emptyBuckets.invalidate(stockKey(voucherId, i));
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(k));
+        shardsCache.put(voucherId, k);
+    }
+
+    /**
+     * 桶的库存被补回后，从本节点的空桶记录中移除
+     * @param voucherId 优惠券ID
+     * @param bucket 桶序号
+     */
+    public void markRefilled(Long voucherId, int bucket) {
+        emptyBuckets.invalidate(stockKey(voucherId, bucket));
+    }
+
+    /**
+     * 查询优惠券的分桶数，本地缓存一段时间以免每次请求都访问Redis
+     * @param voucherId 优惠券ID
+     * @return 分桶数，0表示该优惠券没有分桶
+     */
+    public int shardsOf(Long voucherId) {
+        return shardsCache.get(voucherId, id -> {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + id);
+            return value == null ? 0 : Integer.parseInt(value);
+        });
+    }
+
+    /**
+     * 分桶模式下执行秒杀
+     * @param voucherId 优惠券ID
+     * @param userId 用户ID
+     * @param orderId 订单ID
+     * @param streamKey 订单消息队列
+     * @return 0：成功；1：库存不足；2：重复下单；3：秒杀尚未开始；4：秒杀已经结束
+     */
+    public int seckill(Long voucherId, Long userId, long orderId, String streamKey) {
+        int k = shardsOf(voucherId);
+        int home = homeBucket(userId, k);
+        String user = userId.toString();
+        // 1.在本桶中检查一人一单并扣减库存
+        Long result = redisScriptRegistry.execute(
+                "seckill_shard", Long.class,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), windowKey(voucherId, home)),
+                user
+        );
+        int res = result.intValue();
+        if (res != 0 && res != 5) {
+            return res;
+        }
+        // 扣减了库存的桶，-1表示还没有扣减到库存
+        int taken = res == 0 ? home : -1;
+        try {
+            // 2.本桶库存不足，依次到兄弟桶扣减
+            if (taken < 0) {
+                emptyBuckets.put(stockKey(voucherId, home), Boolean.TRUE);
+                for (int i = 1; i < k && taken < 0; i++) {
+                    int sibling = (home + i) % k;
+                    String siblingKey = stockKey(voucherId, sibling);
+                    if (emptyBuckets.getIfPresent(siblingKey) != null) {
+                        continue;
+                    }
+                    Long took = redisScriptRegistry.execute("seckill_shard_take", Long.class, Collections.singletonList(siblingKey));
+                    if (took.intValue() == 0) {
+                        taken = sibling;
+                    } else {
+                        emptyBuckets.put(siblingKey, Boolean.TRUE);
+                    }
+                }
+            }
+            // 3.所有桶都没有库存，释放本桶中的占位
+            if (taken < 0) {
+                redisScriptRegistry.execute("seckill_shard_release", Long.class, Collections.singletonList(orderKey(voucherId, home)), user);
+                return 1;
+            }
+            // 4.先记录订单状态，再发送订单消息到队列中；消息入队之后不再回滚
+            stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Object execute(RedisOperations operations) throws DataAccessException {
+                    orderStatusTracker.markQueued(operations, orderId, userId);
+                    return null;
+                }
+            });
+            Map<String, String> order = new HashMap<>(4);
+            order.put("userId", user);
+            order.put("voucherId", voucherId.toString());
+            order.put("id", String.valueOf(orderId));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(streamKey).ofMap(order));
+            return 0;
+        } catch (RuntimeException e) {
+            // 订单消息没有入队，退回已扣减的库存并释放本桶中的占位，否则库存和一人一单的占位都会丢失
+            compensate(voucherId, userId, orderId, home, taken);
+            throw e;
+        }
+    }
+
+    /**
+     * 扣减库存之后入队失败时的补偿：退回扣减的库存，释放本桶中的占位，并把订单标记为失败
+     */
+    private void compensate(Long voucherId, Long userId, long orderId, int home, int taken) {
+        try {
+            if (taken >= 0) {
+                redisScriptRegistry.execute("seckill_shard_return", Long.class, Collections.singletonList(stockKey(voucherId, taken)));
+                markRefilled(voucherId, taken);
+            }
+            redisScriptRegistry.execute("seckill_shard_release", Long.class, Collections.singletonList(orderKey(voucherId, home)), userId.toString());
+            orderStatusTracker.markFailed(Collections.singletonList(orderId), "系统繁忙，请稍后重试");
+        } catch (RuntimeException e) {
+            log.error("分桶秒杀入队失败后补偿失败，需要对账修复，voucherId={}，userId={}，bucket={}", voucherId, userId, taken, e);
+        }
+    }
+
+    /**
+     * 第i个桶的库存key，形如 seckill:stock:{voucherId:i}
+     */
+    public static String stockKey(Long voucherId, int bucket) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 第i个桶的订单key，形如 seckill:order:{voucherId:i}
+     */
+    public static String orderKey(Long voucherId, int bucket) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 第i个桶的时间窗口key，形如 seckill:window:{voucherId:i}
+     */
+    public static String windowKey(Long voucherId, int bucket) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 用户所属的桶
+     */
+    public static int homeBucket(Long userId, int shards) {
+        return Math.floorMod(userId.hashCode(), shards);
+    }
+}
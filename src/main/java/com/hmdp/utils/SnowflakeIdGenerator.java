@@ -0,0 +1,214 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LEASE_KEY;
+
+/**
+ * Snowflake风格的ID生成器，ID完全在本地生成：
+ * 1位符号位 | 1位策略位（固定为1） | 40位毫秒时间戳 | 10位workerId | 12位序列号。
+ * RedisIdWorker的ID（秒级时间戳左移32位）在开始时间后约34年内最高只用到第62位以下，
+ * 策略位固定为1保证两种模式的ID范围不重叠，从incr/segment切换到snowflake时不会与已有订单主键冲突。
+ * workerId从Redis中租用（SET NX EX），由后台心跳定期续约，只有租约申请和续约时才访问Redis。
+ * 时钟小幅回拨时等待时钟追上；大幅回拨时沿用上一次的时间戳继续递增，保证ID不重复。
+ * 同一毫秒内序列号用完时推进到下一毫秒。
+ */
+@Slf4j
+public class SnowflakeIdGenerator {
+
+    // 开始时间（毫秒），与RedisIdWorker一致
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+
+    private static final long TIMESTAMP_BITS = 40L;
+    private static final long WORKER_BITS = 10L;
+    private static final long SEQUENCE_BITS = 12L;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    /**
+     * 策略位，与RedisIdWorker生成的ID区分开
+     */
+    private static final long STRATEGY_BIT = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+
+    /**
+     * 允许通过等待来消除的最大时钟回拨（毫秒）
+     */
+    private static final long MAX_BACKWARD_MS = 5L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisScriptRegistry redisScriptRegistry;
+
+    /**
+     * 租约时长（秒），心跳间隔为租约时长的三分之一
+     */
+    private final long leaseSeconds;
+
+    /**
+     * 当前节点持有租约的标识
+     */
+    private final String owner = UUID.randomUUID().toString(true);
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    private volatile long workerId = -1;
+
+    /**
+     * 租约在本地的截止时间，超过该时间仍未续约成功则停止生成ID，避免与接手该workerId的节点冲突
+     */
+    private volatile long leaseDeadline;
+
+    private long lastTimestamp = -1L;
+    private long sequence = 0L;
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry, long leaseSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    /**
+     * 申请workerId并启动续约心跳
+     */
+    public synchronized void start() {
+        acquire();
+        long period = Math.max(leaseSeconds * 1000 / 3, 1);
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snowflake-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止心跳并释放workerId
+     */
+    public synchronized void stop() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
+        if (workerId >= 0) {
+            String key = ID_WORKER_LEASE_KEY + workerId;
+            if (owner.equals(stringRedisTemplate.opsForValue().get(key))) {
+                stringRedisTemplate.delete(key);
+            }
+            workerId = -1;
+        }
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * 生成下一个ID
+     * @return 生成的ID
+     */
+    public synchronized long nextId() {
+        if (workerId < 0 || System.currentTimeMillis() > leaseDeadline) {
+            throw new IllegalStateException("Snowflake workerId租约已失效");
+        }
+        long now = System.currentTimeMillis();
+        if (now < lastTimestamp) {
+            long backward = lastTimestamp - now;
+            if (backward <= MAX_BACKWARD_MS) {
+                // 小幅回拨，等待时钟追上
+                sleep(backward);
+                now = System.currentTimeMillis();
+            }
+            if (now < lastTimestamp) {
+                // 大幅回拨，沿用上一次的时间戳
+                log.warn("检测到时钟回拨{}ms，沿用上一次的时间戳", lastTimestamp - now);
+                now = lastTimestamp;
+            }
+        }
+        if (now == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // 同一毫秒内序列号用完，推进到下一毫秒
+                now = nextMillis(lastTimestamp);
+            }
+        } else {
+            sequence = 0L;
+        }
+        lastTimestamp = now;
+        return STRATEGY_BIT | (now - BEGIN_TIMESTAMP) << (WORKER_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    /**
+     * 等待时钟进入下一毫秒；若时钟已回拨到远落后于上一次时间戳，则直接使用上一次时间戳+1
+     */
+    private long nextMillis(long last) {
+        long now = System.currentTimeMillis();
+        while (now <= last) {
+            if (last - now > MAX_BACKWARD_MS) {
+                return last + 1;
+            }
+            Thread.yield();
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+
+    /**
+     * 从随机位置开始依次尝试 SET icr:worker:{id} owner NX EX leaseSeconds
+     */
+    private void acquire() {
+        int start = RandomUtil.randomInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long begin = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_LEASE_KEY + id, owner, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                workerId = id;
+                leaseDeadline = begin + leaseSeconds * 1000;
+                log.info("申请到Snowflake workerId={}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的Snowflake workerId");
+    }
+
+    /**
+     * 续约租约；租约已丢失时重新申请workerId
+     */
+    private void renew() {
+        try {
+            long begin = System.currentTimeMillis();
+            Long result = redisScriptRegistry.execute(
+                    "worker_renew", Long.class,
+                    Collections.singletonList(ID_WORKER_LEASE_KEY + workerId),
+                    owner, String.valueOf(leaseSeconds)
+            );
+            if (result != null && result == 1L) {
+                leaseDeadline = begin + leaseSeconds * 1000;
+                return;
+            }
+            log.warn("Snowflake workerId={}的租约已丢失，重新申请", workerId);
+            synchronized (this) {
+                acquire();
+            }
+        } catch (Exception e) {
+            // 续约失败时保留原租约，直到本地截止时间
+            log.error("Snowflake workerId续约失败", e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 进程内的秒杀券售罄标记。
+ * 秒杀脚本返回库存不足后在本地标记该优惠券已售罄，并通过Redis发布订阅通知所有节点；
+ * 之后的秒杀请求直接在本地被拒绝，不再访问Redis。补充库存时清除标记并同样广播给所有节点。
+ * 标记在 ttl-ms 后过期，过期后的第一个请求重新执行秒杀脚本确认库存：
+ * 售罄广播晚于清除广播到达时，最多误拒这么长时间，不会一直拒绝仍有库存的优惠券。
+ * 消息格式：1:voucherId 表示售罄，0:voucherId 表示清除售罄标记。
+ */
+@Slf4j
+@Component
+public class SoldOutCache implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 售罄标记的有效期（毫秒）
+     */
+    @Value("${hmdp.seckill.sold-out.ttl-ms:3000}")
+    private long ttlMs;
+
+    /**
+     * 已售罄的优惠券ID
+     */
+    private Cache<Long, Boolean> soldOut;
+
+    public SoldOutCache(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        soldOut = Caffeine.newBuilder()
+                .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                .build();
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券是否已售罄
+     * @param voucherId 优惠券ID
+     * @return true表示已售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.getIfPresent(voucherId) != null;
+    }
+
+    /**
+     * 标记优惠券已售罄，并通知其他节点
+     * @param voucherId 优惠券ID
+     */
+    public void markSoldOut(Long voucherId) {
+        // 本节点已经标记过的不再重复广播
+        if (soldOut.asMap().putIfAbsent(voucherId, Boolean.TRUE) == null) {
+            publish("1:" + voucherId);
+        }
+    }
+
+    /**
+     * 清除优惠券的售罄标记（补充库存后调用），并通知其他节点
+     * @param voucherId 优惠券ID
+     */
+    public void clear(Long voucherId) {
+        soldOut.invalidate(voucherId);
+        publish("0:" + voucherId);
+    }
+
+    /**
+     * 接收其他节点广播的售罄标记变更
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body.substring(2));
+            if (body.startsWith("1:")) {
+                soldOut.put(voucherId, Boolean.TRUE);
+            } else {
+                soldOut.invalidate(voucherId);
+            }
+        } catch (Exception e) {
+            log.warn("无法解析售罄消息：{}", body);
+        }
+    }
+
+    private void publish(String message) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, message);
+        } catch (Exception e) {
+            // 广播失败只影响其他节点的本地拦截，不影响正确性
+            log.warn("广播售罄消息失败：{}", message, e);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮。
+ * 第一层每格tickMs毫秒，共wheelSize格；超出本层范围的任务放入上一层（每格为下一层的一整圈），上层时间轮按需创建。
+ * 只有非空的格子才会放入DelayQueue，推进线程按格子到期时间等待，不会空转；
+ * 格子到期时把其中的任务重新放入时间轮，高层的任务会逐层下降，直到到期后交给回调处理。
+ * 添加任务是O(1)，适合大量近期到期的任务。
+ * @param <T> 任务内容
+ */
+@Slf4j
+public class TimingWheel<T> {
+
+    private final Consumer<T> onExpire;
+
+    private final Level<T> root;
+
+    private final DelayQueue<Bucket<T>> queue = new DelayQueue<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * 添加任务时持有读锁，推进时钟时持有写锁
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Thread ticker;
+
+    private volatile boolean running;
+
+    /**
+     * @param tickMs 第一层每格的时长（毫秒）
+     * @param wheelSize 每层的格数
+     * @param onExpire 任务到期时的回调，在推进线程中执行，应当尽快返回
+     * @param threadName 推进线程的名称
+     */
+    public TimingWheel(long tickMs, int wheelSize, Consumer<T> onExpire, String threadName) {
+        this.onExpire = onExpire;
+        this.root = new Level<>(tickMs, wheelSize, System.currentTimeMillis(), queue);
+        this.ticker = new Thread(this::run, threadName);
+        this.ticker.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        ticker.start();
+    }
+
+    public void stop() {
+        running = false;
+        ticker.interrupt();
+    }
+
+    /**
+     * @return 时间轮中尚未到期的任务数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * 添加任务，已经到期的任务直接执行回调
+     * @param deadline 到期时间（毫秒时间戳）
+     * @param task 任务内容
+     */
+    public void add(long deadline, T task) {
+        Entry<T> entry = new Entry<>(deadline, task);
+        lock.readLock().lock();
+        try {
+            if (root.add(entry)) {
+                size.incrementAndGet();
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        expire(entry);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Bucket<T> bucket = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (bucket == null) {
+                    continue;
+                }
+                List<Entry<T>> expired = new ArrayList<>();
+                lock.writeLock().lock();
+                try {
+                    while (bucket != null) {
+                        root.advanceClock(bucket.getExpiration());
+                        for (Entry<T> entry : bucket.flush()) {
+                            size.decrementAndGet();
+                            // 高层的任务重新放入时间轮，会落到更低层的格子里；到期的任务收集起来，释放锁后执行
+                            if (root.add(entry)) {
+                                size.incrementAndGet();
+                            } else {
+                                expired.add(entry);
+                            }
+                        }
+                        bucket = queue.poll();
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                expired.forEach(this::expire);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("时间轮推进异常", e);
+            }
+        }
+    }
+
+    private void expire(Entry<T> entry) {
+        try {
+            onExpire.accept(entry.task);
+        } catch (Exception e) {
+            log.error("时间轮任务回调异常", e);
+        }
+    }
+
+    private static class Entry<T> {
+        private final long deadline;
+        private final T task;
+
+        Entry(long deadline, T task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * 时间轮的一层
+     */
+    private static class Level<T> {
+        private final long tickMs;
+        private final int wheelSize;
+        private final long interval;
+        private final Bucket<T>[] buckets;
+        private final DelayQueue<Bucket<T>> queue;
+        private long currentTime;
+        private volatile Level<T> overflow;
+
+        @SuppressWarnings("unchecked")
+        Level(long tickMs, int wheelSize, long startMs, DelayQueue<Bucket<T>> queue) {
+            this.tickMs = tickMs;
+            this.wheelSize = wheelSize;
+            this.interval = tickMs * wheelSize;
+            this.queue = queue;
+            this.currentTime = startMs - startMs % tickMs;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket<>();
+            }
+        }
+
+        /**
+         * @return 放入时间轮返回true，已经到期返回false
+         */
+        boolean add(Entry<T> entry) {
+            long deadline = entry.deadline;
+            if (deadline < currentTime + tickMs) {
+                return false;
+            }
+            if (deadline < currentTime + interval) {
+                long virtualId = deadline / tickMs;
+                Bucket<T> bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.add(entry);
+                // 格子的到期时间变化说明它是新启用的格子，需要放入DelayQueue
+                if (bucket.setExpiration(virtualId * tickMs)) {
+                    queue.offer(bucket);
+                }
+                return true;
+            }
+            return overflow().add(entry);
+        }
+
+        private Level<T> overflow() {
+            if (overflow == null) {
+                synchronized (this) {
+                    if (overflow == null) {
+                        overflow = new Level<>(interval, wheelSize, currentTime, queue);
+                    }
+                }
+            }
+            return overflow;
+        }
+
+        void advanceClock(long time) {
+            if (time >= currentTime + tickMs) {
+                currentTime = time - time % tickMs;
+                if (overflow != null) {
+                    overflow.advanceClock(currentTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * 时间轮的一格
+     */
+    private static class Bucket<T> implements Delayed {
+        private final AtomicLong expiration = new AtomicLong(-1);
+        private List<Entry<T>> entries = new ArrayList<>();
+
+        synchronized void add(Entry<T> entry) {
+            entries.add(entry);
+        }
+
+        synchronized List<Entry<T>> flush() {
+            List<Entry<T>> flushed = entries;
+            entries = new ArrayList<>();
+            expiration.set(-1);
+            return flushed;
+        }
+
+        boolean setExpiration(long expirationMs) {
+            return expiration.getAndSet(expirationMs) != expirationMs;
+        }
+
+        long getExpiration() {
+            return expiration.get();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(Math.max(getExpiration() - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getExpiration(), ((Bucket<?>) o).getExpiration());
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ 缓存失效发件箱 tb_cache_invalidation，ICacheInvalidationService 依赖该表。
+ 1.事务中删除缓存时，在同一个事务中写入一条记录，事务提交后删除缓存成功再删除记录；
+ 2.删除缓存失败、或者提交后进程退出没来得及删除时，记录保留在表中，由定时任务在 next_retry_time 之后重试，直到成功；
+ 3.延迟二次删除失败时同样写入一条记录重试。
+*/
+
+CREATE TABLE IF NOT EXISTS `tb_cache_invalidation`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `cache_key` varchar(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '需要删除的缓存key',
+  `attempts` int(8) UNSIGNED NOT NULL DEFAULT 0 COMMENT '已重试的次数',
+  `next_retry_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下一次重试的时间',
+  `last_error` varchar(512) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NULL DEFAULT NULL COMMENT '最近一次失败的原因',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_next_retry_time`(`next_retry_time`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
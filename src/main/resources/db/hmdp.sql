@@ -65,6 +65,26 @@ CREATE TABLE `tb_blog_comments`  (
 -- Records of tb_blog_comments
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_invalidation
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_invalidation`;
+CREATE TABLE `tb_cache_invalidation`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `cache_key` varchar(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '需要删除的缓存key',
+  `attempts` int(8) UNSIGNED NOT NULL DEFAULT 0 COMMENT '已重试的次数',
+  `next_retry_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下一次重试的时间',
+  `last_error` varchar(512) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NULL DEFAULT NULL COMMENT '最近一次失败的原因',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_next_retry_time`(`next_retry_time`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
+-- ----------------------------
+-- Records of tb_cache_invalidation
+-- ----------------------------
+
 -- ----------------------------
 -- Table structure for tb_follow
 -- ----------------------------
@@ -1274,7 +1294,9 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active` tinyint(1) UNSIGNED NULL DEFAULT 1 COMMENT '未取消为1，已取消为NULL，已取消的订单不参与唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uniq_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -0,0 +1,48 @@
+/*
+ 为 tb_voucher_order 增加 (user_id, voucher_id, active) 唯一索引，订单落库方式 persist-mode=unique 依赖该索引。
+ active 未取消时为1，取消订单时置为NULL；唯一索引中NULL互不冲突，因此已取消的订单保留原记录，不影响用户重新下单。
+ 已有数据中如果存在同一用户重复购买（未取消）同一优惠券的订单，需要先清理，否则无法创建唯一索引：
+ 1.保留每个(user_id, voucher_id)中最早的一条未取消订单，其余未取消订单备份到 tb_voucher_order_dup 后删除；
+ 2.重复订单占用的库存不会自动退回，请根据备份表人工核对；
+ 3.使用在线DDL增加列和创建唯一索引，执行期间不阻塞订单写入。
+ 执行前请先停止订单消费者，或者保持 persist-mode=lock 直到迁移完成。
+*/
+
+-- 1.增加active列，已取消的订单置为NULL
+ALTER TABLE `tb_voucher_order`
+  ADD COLUMN `active` tinyint(1) UNSIGNED NULL DEFAULT 1 COMMENT '未取消为1，已取消为NULL，已取消的订单不参与唯一约束',
+  ALGORITHM = INPLACE, LOCK = NONE;
+
+UPDATE `tb_voucher_order` SET `active` = NULL WHERE `status` = 4;
+
+-- 2.查看重复订单
+SELECT `user_id`, `voucher_id`, COUNT(*) AS `cnt`
+FROM `tb_voucher_order`
+WHERE `active` = 1
+GROUP BY `user_id`, `voucher_id`
+HAVING COUNT(*) > 1;
+
+-- 3.备份重复订单（每组保留id最小的一条）
+CREATE TABLE IF NOT EXISTS `tb_voucher_order_dup` LIKE `tb_voucher_order`;
+
+INSERT INTO `tb_voucher_order_dup`
+SELECT o.*
+FROM `tb_voucher_order` o
+JOIN (
+  SELECT `user_id`, `voucher_id`, MIN(`id`) AS `keep_id`
+  FROM `tb_voucher_order`
+  WHERE `active` = 1
+  GROUP BY `user_id`, `voucher_id`
+  HAVING COUNT(*) > 1
+) d ON o.`user_id` = d.`user_id` AND o.`voucher_id` = d.`voucher_id` AND o.`id` <> d.`keep_id`
+WHERE o.`active` = 1;
+
+-- 4.删除重复订单
+DELETE o FROM `tb_voucher_order` o
+JOIN `tb_voucher_order_dup` d ON o.`id` = d.`id`;
+
+-- 5.创建唯一索引；已经按旧版本脚本创建了 (user_id, voucher_id) 唯一索引的，先执行
+--   ALTER TABLE `tb_voucher_order` DROP INDEX `uniq_user_voucher`;
+ALTER TABLE `tb_voucher_order`
+  ADD UNIQUE INDEX `uniq_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  ALGORITHM = INPLACE, LOCK = NONE;
@@ -0,0 +1,16 @@
+-- 认领即将到期的超时任务：把到期时间不晚于maxScore的任务的分数推迟到租约到期时间
+-- 认领的节点处理完成后删除任务；节点宕机时租约到期，任务会被其他节点重新认领
+-- 超时任务有序集合
+local key = KEYS[1]
+-- 认领范围：到期时间不晚于该值的任务
+local maxScore = ARGV[1]
+-- 租约到期时间
+local leaseScore = ARGV[2]
+-- 每次最多认领的数量
+local limit = ARGV[3]
+
+local members = redis.call('zrangebyscore', key, '-inf', maxScore, 'LIMIT', 0, limit)
+for i = 1, #members do
+    redis.call('zadd', key, leaseScore, members[i])
+end
+return members
@@ -5,16 +5,49 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 订单id
 local orderId = ARGV[3]
+-- 订单消息队列，按优惠券分区时为 stream.orders.{n}
+local streamKey = ARGV[4] or 'stream.orders'
+-- 订单状态的保留时间（秒）
+local statusTtl = ARGV[5] or '1800'
+
+-- 脚本中读取了服务器时间，需要按命令而不是按脚本复制（Redis 5之前）
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
 
 -- 数据key
 -- 库存key
 local stockKey = 'seckill:stock:' .. voucherId
 -- 订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 秒杀时间窗口key
+local windowKey = 'seckill:window:' .. voucherId
+-- 订单状态key
+local statusKey = 'order:status:' .. orderId
 
 -- 脚本业务
+-- 判断是否在秒杀时间窗口内
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(window[1])) then
+        -- 秒杀尚未开始
+        return 3
+    end
+    if (now > tonumber(window[2])) then
+        -- 秒杀已经结束
+        return 4
+    end
+end
+
 -- 判断库存是否充足
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil) then
+    -- 库存尚未预热
+    return 3
+end
+if (stock <= 0) then
     -- 库存不足
     return 1
 end
@@ -26,10 +59,13 @@ if (redis.call('sismember', orderKey, userId) == 1) then
 end
 
 -- 扣减库存
-redis.call('incrby', stockKey, -1')
+redis.call('incrby', stockKey, -1)
 -- 下单 保存用户
 redis.call('sadd', orderKey, userId)
 -- 发送X消息到队列中
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)')
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 记录订单状态：已进入队列
+redis.call('hset', statusKey, 's', 'QUEUED', 'u', userId)
+redis.call('expire', statusKey, statusTtl)
 
-return 0
\ No newline at end of file
+return 0
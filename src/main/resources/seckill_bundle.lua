@@ -0,0 +1,58 @@
+-- 组合秒杀：一次检查并扣减多张秒杀券的库存，全部成功或全部失败
+-- 参数列表：用户id、订单消息队列、订单状态保留时间，之后每两个参数为一组（优惠券id，订单id）
+local userId = ARGV[1]
+local streamKey = ARGV[2]
+local statusTtl = ARGV[3]
+local n = (#ARGV - 3) / 2
+
+-- 脚本中读取了服务器时间，需要按命令而不是按脚本复制（Redis 5之前）
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 1.先检查所有优惠券，任意一张不满足条件都不扣减，返回{失败原因, 优惠券id}
+for i = 1, n do
+    local voucherId = ARGV[2 + i * 2]
+    -- 判断是否在秒杀时间窗口内
+    local window = redis.call('hmget', 'seckill:window:' .. voucherId, 'begin', 'end')
+    if (window[1]) then
+        if (now < tonumber(window[1])) then
+            return { 3, tonumber(voucherId) }
+        end
+        if (now > tonumber(window[2])) then
+            return { 4, tonumber(voucherId) }
+        end
+    end
+    -- 判断库存是否充足
+    local stock = tonumber(redis.call('get', 'seckill:stock:' .. voucherId))
+    if (stock == nil) then
+        return { 3, tonumber(voucherId) }
+    end
+    if (stock <= 0) then
+        return { 1, tonumber(voucherId) }
+    end
+    -- 判断用户是否重复下单
+    if (redis.call('sismember', 'seckill:order:' .. voucherId, userId) == 1) then
+        return { 2, tonumber(voucherId) }
+    end
+end
+
+-- 2.全部满足条件，扣减库存、保存用户、记录订单状态
+local items = {}
+for i = 1, n do
+    local voucherId = ARGV[2 + i * 2]
+    local orderId = ARGV[3 + i * 2]
+    redis.call('incrby', 'seckill:stock:' .. voucherId, -1)
+    redis.call('sadd', 'seckill:order:' .. voucherId, userId)
+    local statusKey = 'order:status:' .. orderId
+    redis.call('hset', statusKey, 's', 'QUEUED', 'u', userId)
+    redis.call('expire', statusKey, statusTtl)
+    items[i] = voucherId .. ':' .. orderId
+end
+
+-- 3.整个组合只发送一条消息：bundle = 优惠券id:订单id,优惠券id:订单id,...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'bundle', table.concat(items, ','))
+return { 0, 0 }
@@ -0,0 +1,32 @@
+-- 秒杀全局令牌桶限流
+-- 令牌桶key
+local key = KEYS[1]
+-- 每秒生成的令牌数
+local rate = tonumber(ARGV[1])
+-- 令牌桶容量
+local capacity = tonumber(ARGV[2])
+
+-- 脚本中读取了服务器时间，需要按命令而不是按脚本复制（Redis 5之前）
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 按上次取令牌到现在经过的时间补充令牌
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+
+local allowed = 0
+if (tokens >= 1) then
+    tokens = tokens - 1
+    allowed = 1
+end
+
+redis.call('hset', key, 'tokens', tokens, 'ts', now)
+-- 令牌桶补满后key就没有意义了，过期删除
+redis.call('pexpire', key, math.ceil(capacity / rate * 1000) + 1000)
+return allowed
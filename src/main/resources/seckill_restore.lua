@@ -0,0 +1,15 @@
+-- 取消订单后归还秒杀库存：将用户移出订单集合，并按实际移除的数量补回库存
+-- 库存key
+local stockKey = KEYS[1]
+-- 订单key
+local orderKey = KEYS[2]
+
+local restored = 0
+for i = 1, #ARGV do
+    restored = restored + redis.call('srem', orderKey, ARGV[i])
+end
+-- 库存key已过期（秒杀已结束并超过保留期）时不再创建
+if (restored > 0 and redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, restored)
+end
+return restored
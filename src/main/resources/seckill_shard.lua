@@ -0,0 +1,54 @@
+-- 分桶库存模式下的秒杀脚本，只访问用户所属桶（同一个hash tag）内的key
+-- 库存key
+local stockKey = KEYS[1]
+-- 订单key
+local orderKey = KEYS[2]
+-- 秒杀时间窗口key
+local windowKey = KEYS[3]
+-- 当前用户id
+local userId = ARGV[1]
+
+-- 脚本中读取了服务器时间，需要按命令而不是按脚本复制（Redis 5之前）
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+-- 判断是否在秒杀时间窗口内
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(window[1])) then
+        -- 秒杀尚未开始
+        return 3
+    end
+    if (now > tonumber(window[2])) then
+        -- 秒杀已经结束
+        return 4
+    end
+end
+
+-- 判断用户是否重复下单（用户总是路由到同一个桶，因此只需检查本桶的订单集合）
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 重复下单
+    return 2
+end
+
+-- 判断本桶库存是否已预热
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil) then
+    return 3
+end
+
+-- 下单 保存用户，库存不足时也先占位，防止同一用户并发地从其他桶扣减库存
+redis.call('sadd', orderKey, userId)
+
+-- 判断本桶库存是否充足
+if (stock <= 0) then
+    -- 本桶库存不足，需要到其他桶扣减
+    return 5
+end
+
+-- 扣减库存
+redis.call('incrby', stockKey, -1)
+return 0
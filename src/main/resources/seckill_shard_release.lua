@@ -0,0 +1,8 @@
+-- 分桶库存模式下所有桶都没有库存时，释放用户在本桶订单集合中的占位
+-- 订单key
+local orderKey = KEYS[1]
+-- 当前用户id
+local userId = ARGV[1]
+
+redis.call('srem', orderKey, userId)
+return 1
@@ -0,0 +1,10 @@
+-- 分桶库存模式下入队失败时，把已经扣减的一个库存退回到对应的桶
+-- 库存key
+local stockKey = KEYS[1]
+
+-- 库存key已过期（秒杀已结束并超过保留期）时不再创建
+if (redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, 1)
+    return 1
+end
+return 0
@@ -0,0 +1,12 @@
+-- 分桶库存模式下从兄弟桶扣减一个库存
+-- 库存key
+local stockKey = KEYS[1]
+
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    -- 库存不足
+    return 1
+end
+
+redis.call('incrby', stockKey, -1)
+return 0
@@ -0,0 +1,13 @@
+-- 续约Snowflake的workerId租约
+-- 租约key
+local key = KEYS[1]
+-- 当前节点持有租约的标识
+local owner = ARGV[1]
+-- 租约时长（秒）
+local ttl = ARGV[2]
+
+-- 只有租约仍由当前节点持有时才续约
+if (redis.call('get', key) == owner) then
+    return redis.call('expire', key, ttl)
+end
+return 0
@@ -6,18 +6,24 @@ import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
@@ -38,6 +44,9 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
     @Test
     void testSaveShop() throws InterruptedException {
@@ -63,6 +72,7 @@ class HmDianPingApplicationTests {
                 long id = redisIdWorker.nextId("order"); // 从ID生成器获取订单ID
                 System.out.println("id = " + id);
             }
+            countDownLatch.countDown();
         };
 
         // 记录测试开始时间
@@ -84,6 +94,50 @@ class HmDianPingApplicationTests {
     }
 
 
+    /**
+     * 对比各种ID生成策略的吞吐量。
+     * 与testIdWorker相同的场景：300个任务并发地各获取100个ID，分别使用INCR、号段预取和Snowflake三种策略，
+     * 并检查生成的30000个ID没有重复。
+     *
+     * @throws InterruptedException 如果等待任务完成时被中断
+     */
+    @Test
+    void testIdWorkerStrategies() throws InterruptedException {
+        RedisIdWorker incrWorker = new RedisIdWorker(stringRedisTemplate, redisScriptRegistry);
+        RedisIdWorker segmentWorker = new RedisIdWorker(stringRedisTemplate, redisScriptRegistry);
+        ReflectionTestUtils.setField(segmentWorker, "mode", "segment");
+        SnowflakeIdGenerator snowflake = new SnowflakeIdGenerator(stringRedisTemplate, redisScriptRegistry, 30);
+        snowflake.start();
+        try {
+            benchmarkIdWorker("incr", () -> incrWorker.nextId("bench"));
+            benchmarkIdWorker("segment", () -> segmentWorker.nextId("bench"));
+            benchmarkIdWorker("snowflake", snowflake::nextId);
+        } finally {
+            snowflake.stop();
+        }
+    }
+
+    private void benchmarkIdWorker(String name, LongSupplier idSupplier) throws InterruptedException {
+        CountDownLatch countDownLatch = new CountDownLatch(300);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Runnable task = () -> {
+            for (int i = 0; i < 100; i++) {
+                ids.add(idSupplier.getAsLong());
+            }
+            countDownLatch.countDown();
+        };
+        long begin = System.nanoTime();
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        countDownLatch.await();
+        long end = System.nanoTime();
+        System.out.println(name + ": time = " + (end - begin) / 1000000 + "ms, ids/s = "
+                + 30000L * 1000000000L / (end - begin));
+        Assertions.assertEquals(30000, ids.size());
+    }
+
+
     /**
      * 加载店铺数据并存储到Redis中。
      * 该方法首先从店铺服务中查询所有店铺信息，然后按照店铺的类型ID进行分组。
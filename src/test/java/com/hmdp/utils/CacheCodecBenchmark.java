@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码器的JMH基准测试，比较json和bin1编码商铺数据的字节数、耗时(ns/op)和每次操作分配的内存(gc.alloc.rate.norm)。
+ * 不随单元测试运行，需要时执行main方法：先打印两种编码的字节数，再运行基准测试。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    @Param({JsonCacheCodec.VERSION, BinaryCacheCodec.VERSION})
+    private String codecVersion;
+
+    private CacheCodec codec;
+
+    private RedisData redisData;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        codec = codec(codecVersion);
+        redisData = sample();
+        encoded = codec.encodeLogical(redisData);
+    }
+
+    @Benchmark
+    public byte[] encodeLogical() {
+        return codec.encodeLogical(redisData);
+    }
+
+    @Benchmark
+    public RedisData decodeLogical() {
+        return codec.decodeLogical(encoded, Shop.class);
+    }
+
+    private static CacheCodec codec(String version) {
+        return BinaryCacheCodec.VERSION.equals(version) ? new BinaryCacheCodec() : new JsonCacheCodec();
+    }
+
+    private static RedisData sample() {
+        Shop shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        return redisData;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        RedisData redisData = sample();
+        for (String version : new String[]{JsonCacheCodec.VERSION, BinaryCacheCodec.VERSION}) {
+            System.out.printf("%s: %d bytes%n", version, codec(version).encodeLogical(redisData).length);
+        }
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * 缓存编解码器的往返测试，不启动Spring：json和bin1编码后再解码，结果与原对象相同；
+ * bin1的数据与类的字段结构不一致或者被截断时解码失败，由CacheClient当作缓存未命中处理。
+ */
+class CacheCodecTest {
+
+    private final JsonCacheCodec json = new JsonCacheCodec();
+
+    private final BinaryCacheCodec binary = new BinaryCacheCodec();
+
+    @Test
+    void binaryRoundTrip() {
+        Sample sample = sample();
+        Assertions.assertEquals(sample, binary.decode(binary.encode(sample), Sample.class));
+    }
+
+    @Test
+    void binaryRoundTripNulls() {
+        // 所有字段都为null，以及整个对象为null
+        Assertions.assertEquals(new Sample(), binary.decode(binary.encode(new Sample()), Sample.class));
+        Assertions.assertNull(binary.decode(binary.encode(null), Sample.class));
+
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2026, 10, 18, 12, 0));
+        RedisData decoded = binary.decodeLogical(binary.encodeLogical(redisData), Sample.class);
+        Assertions.assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        Assertions.assertNull(decoded.getData());
+    }
+
+    @Test
+    void binaryRoundTripLogical() {
+        RedisData redisData = new RedisData();
+        // 1970年之前的时间，秒数为负数
+        redisData.setExpireTime(LocalDateTime.of(1960, 1, 1, 0, 0, 0, 999999999));
+        redisData.setData(sample());
+        RedisData decoded = binary.decodeLogical(binary.encodeLogical(redisData), Sample.class);
+        Assertions.assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        Assertions.assertEquals(redisData.getData(), decoded.getData());
+    }
+
+    @Test
+    void binaryNegativeVarLongs() {
+        for (long value : new long[]{-1L, -64L, -65L, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MIN_VALUE}) {
+            Sample sample = new Sample();
+            sample.setLongValue(value);
+            sample.setIntValue((int) value);
+            sample.setShortValue((short) value);
+            Assertions.assertEquals(sample, binary.decode(binary.encode(sample), Sample.class));
+        }
+    }
+
+    @Test
+    void binarySchemaMismatch() {
+        byte[] bytes = binary.encode(sample());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> binary.decode(bytes, SampleV2.class));
+        // 普通缓存值和逻辑过期缓存值的魔数不同
+        Assertions.assertThrows(IllegalArgumentException.class, () -> binary.decodeLogical(bytes, Sample.class));
+    }
+
+    @Test
+    void binaryTruncated() {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2026, 10, 18, 12, 0));
+        redisData.setData(sample());
+        byte[] bytes = binary.encodeLogical(redisData);
+        for (int length = 0; length < bytes.length; length++) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            Assertions.assertThrows(RuntimeException.class, () -> binary.decodeLogical(truncated, Sample.class),
+                    "截断到" + length + "字节");
+        }
+    }
+
+    @Test
+    void jsonRoundTrip() {
+        // json按毫秒保存时间
+        Sample sample = sample();
+        Assertions.assertEquals(sample, json.decode(json.encode(sample), Sample.class));
+        Assertions.assertEquals(new Sample(), json.decode(json.encode(new Sample()), Sample.class));
+    }
+
+    @Test
+    void jsonRoundTripLogical() {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2026, 10, 18, 12, 0, 0, 123000000));
+        redisData.setData(sample());
+        RedisData decoded = json.decodeLogical(json.encodeLogical(redisData), Sample.class);
+        Assertions.assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        Assertions.assertEquals(redisData.getData(), decoded.getData());
+
+        redisData.setData(null);
+        Assertions.assertNull(json.decodeLogical(json.encodeLogical(redisData), Sample.class).getData());
+    }
+
+    @Test
+    void jsonTruncated() {
+        byte[] bytes = json.encode(sample());
+        Assertions.assertThrows(RuntimeException.class,
+                () -> json.decode(Arrays.copyOf(bytes, bytes.length / 2), Sample.class));
+    }
+
+    private static Sample sample() {
+        Sample sample = new Sample();
+        sample.setLongValue(-1234567890123L);
+        sample.setIntValue(-42);
+        sample.setShortValue((short) -7);
+        sample.setByteValue((byte) -1);
+        sample.setBooleanValue(true);
+        sample.setDoubleValue(-120.149192);
+        sample.setFloatValue(3.5F);
+        sample.setStringValue("103茶餐厅");
+        sample.setBigDecimalValue(new BigDecimal("-12345.6789"));
+        sample.setTimeValue(LocalDateTime.of(2026, 10, 18, 12, 30, 45, 678000000));
+        return sample;
+    }
+
+    @Data
+    public static class Sample {
+        private Long longValue;
+        private Integer intValue;
+        private Short shortValue;
+        private Byte byteValue;
+        private Boolean booleanValue;
+        private Double doubleValue;
+        private Float floatValue;
+        private String stringValue;
+        private BigDecimal bigDecimalValue;
+        private LocalDateTime timeValue;
+    }
+
+    /**
+     * 比Sample多一个字段，模拟实体类的字段发生变化
+     */
+    @Data
+    public static class SampleV2 {
+        private Long longValue;
+        private Integer intValue;
+        private Short shortValue;
+        private Byte byteValue;
+        private Boolean booleanValue;
+        private Double doubleValue;
+        private Float floatValue;
+        private String stringValue;
+        private BigDecimal bigDecimalValue;
+        private LocalDateTime timeValue;
+        private Integer score;
+    }
+}